@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out how many entries to ask for in each DLNA Browse request.
+ *
+ * <p>
+ * Starts at {@link #INITIAL_SIZE}. Each full page that comes back quickly
+ * makes the next pages bigger, up to {@link #MAX_SIZE}. Pages are compared by
+ * time per entry, since a bigger page is always going to take longer: a page
+ * is quick if each entry took no more than twice as long as in the fastest
+ * full page so far. That also leaves room for the other requests in flight
+ * at the same time. A failed request (usually the PVR timing out) halves the
+ * size, down to {@link #MIN_SIZE}.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class BrowsePageSizer {
+
+    static final int MIN_SIZE = 10;
+    static final int INITIAL_SIZE = 50;
+    static final int MAX_SIZE = 500;
+
+    private final Logger log = LoggerFactory.getLogger(BrowsePageSizer.class);
+
+    private int size = INITIAL_SIZE;
+    private double fastest = Double.MAX_VALUE;
+
+    /**
+     * Get the number of entries to ask for in the next request.
+     *
+     * @return int page size
+     */
+    synchronized int getPageSize() {
+        return size;
+    }
+
+    /**
+     * Record a request that worked.
+     *
+     * @param requested int number of entries asked for
+     * @param returned int number of entries that came back
+     * @param elapsed long how long the request took, in miliseconds
+     */
+    synchronized void onSuccess(int requested, int returned, long elapsed) {
+        if (returned < requested || returned <= 0) {
+            // Short pages (the end of a folder) don't say anything about how
+            // big a page the PVR can cope with.
+            return;
+        }
+        double perEntry = (double) elapsed / returned;
+        fastest = Math.min(fastest, perEntry);
+        if (perEntry <= fastest * 2 && requested >= size && size < MAX_SIZE) {
+            size = Math.min(MAX_SIZE, size + size / 2);
+            log.debug("Browse took {}ms for {} entries, page size now {}", elapsed, returned, size);
+        }
+    }
+
+    /**
+     * Record a request that failed.
+     *
+     * @param requested int number of entries asked for
+     */
+    synchronized void onFailure(int requested) {
+        if (requested <= size && size > MIN_SIZE) {
+            size = Math.max(MIN_SIZE, size / 2);
+            log.debug("Browse failed, page size now {}", size);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.model.types.UDAServiceType;
+import org.fourthline.cling.protocol.ProtocolCreationException;
+import org.fourthline.cling.protocol.ProtocolFactoryImpl;
+import org.fourthline.cling.protocol.ReceivingAsync;
+
+/**
+ * Cling settings for a client that only talks to PVRs.
+ *
+ * <p>
+ * Announcements from devices that aren't media servers are dropped by
+ * {@link MediaServerProtocolFactory} as they arrive, so their descriptions
+ * are never fetched, and only ContentDirectory services are looked at in the
+ * devices that are left. The thread pool has an upper limit (the default
+ * grows without limit), and the registry is checked less often.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class ClingConfiguration extends DefaultUpnpServiceConfiguration {
+
+    /**
+     * Most threads for Cling to use. The network listeners hold three threads
+     * for each network interface for as long as Cling is running, and the rest
+     * are for requests (including the Browse requests that DlnaScanner keeps
+     * in flight).
+     */
+    private static final int MAX_POOL_SIZE = 64;
+
+    private static final int REGISTRY_INTERVAL = 5000; // miliseconds
+
+    private static final ServiceType[] SERVICE_TYPES = new ServiceType[]{
+        new UDAServiceType("ContentDirectory")
+    };
+
+    @Override
+    protected ExecutorService createDefaultExecutorService() {
+        // Threads are started as they are needed, up to the limit, and idle
+        // threads are dropped after a while. Jobs aren't queued, since the
+        // listeners never finish and could hold up anything queued behind
+        // them. Once the pool is full, the thread handing over the job runs
+        // it, which slows down whatever is sending them.
+        return new ThreadPoolExecutor(0, MAX_POOL_SIZE,
+                10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Cling-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public int getRegistryMaintenanceIntervalMillis() {
+        return REGISTRY_INTERVAL;
+    }
+
+    @Override
+    public ServiceType[] getExclusiveServiceTypes() {
+        return SERVICE_TYPES;
+    }
+
+    /**
+     * Drops NOTIFY announcements that aren't for a media server or a
+     * ContentDirectory service, before Cling goes and fetches the description
+     * of the device that sent them. Byebye announcements are always let
+     * through, since they don't cost anything.
+     */
+    static class MediaServerProtocolFactory extends ProtocolFactoryImpl {
+
+        MediaServerProtocolFactory(UpnpService upnpService) {
+            super(upnpService);
+        }
+
+        @Override
+        public ReceivingAsync createReceivingAsync(IncomingDatagramMessage message) throws ProtocolCreationException {
+            if (message.getOperation() instanceof UpnpRequest
+                    && ((UpnpRequest) message.getOperation()).getMethod() == UpnpRequest.Method.NOTIFY
+                    && !isByeBye(message) && !isMediaServer(message)) {
+                // Cling ignores messages without a protocol
+                return null;
+            }
+            return super.createReceivingAsync(message);
+        }
+
+        /**
+         * Check the notification type header as a plain string, since this is
+         * called for every announcement on the network.
+         */
+        private boolean isMediaServer(IncomingDatagramMessage message) {
+            String nt = message.getHeaders().getFirstHeader(UpnpHeader.Type.NT.getHttpName());
+            return nt != null && (nt.contains(":device:MediaServer:") || nt.contains(":service:ContentDirectory:"));
+        }
+    }
+}
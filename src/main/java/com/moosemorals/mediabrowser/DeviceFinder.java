@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.message.header.ServiceTypeHeader;
+import org.fourthline.cling.model.message.header.UDADeviceTypeHeader;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDAServiceType;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.protocol.ProtocolFactory;
+import org.fourthline.cling.protocol.RetrieveRemoteDescriptors;
+import org.fourthline.cling.registry.DefaultRegistryListener;
+import org.fourthline.cling.registry.Registry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks for PVRs on the network. There's one of these (and one Cling
+ * service) however many PVRs there are, and each PVR that turns up is handed
+ * to {@link PVR} to connect to.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class DeviceFinder {
+
+    /**
+     * Humax boxes all call themselves "HUMAX" followed by the model, e.g.
+     * "HUMAX HDR-FOX T2 Undefine" or "HUMAX HDR-2000T Undefine".
+     */
+    private static final String DEVICE_PREFIX = "HUMAX ";
+
+    /**
+     * How long a probed device is good for, in seconds. Cling drops it if it
+     * isn't heard from again in that time, and the PVR's own announcements
+     * keep it fresh.
+     */
+    private static final int PROBE_MAX_AGE = 1800;
+
+    private final Logger log = LoggerFactory.getLogger(DeviceFinder.class);
+    private final PVR pvr;
+    private final UpnpService upnpService;
+    private final DefaultRegistryListener registryListener = new DefaultRegistryListener() {
+        @Override
+        public void remoteDeviceAdded(Registry registry, RemoteDevice device) {
+            if (isPVR(device)) {
+                log.info("Found {} at {}", device.getDisplayString(), device.getIdentity().getDescriptorURL());
+                pvr.onRemoteDeviceAdded(device);
+            }
+        }
+
+        @Override
+        public void remoteDeviceRemoved(Registry registry, RemoteDevice device) {
+            if (isPVR(device)) {
+                log.info("Lost {} at {}", device.getDisplayString(), device.getIdentity().getDescriptorURL());
+                pvr.onRemoteDeviceRemoved(device);
+            }
+        }
+    };
+
+    DeviceFinder(PVR pvr) {
+        this.pvr = pvr;
+        upnpService = new UpnpServiceImpl(new ClingConfiguration(), registryListener) {
+            @Override
+            protected ProtocolFactory createProtocolFactory() {
+                return new ClingConfiguration.MediaServerProtocolFactory(this);
+            }
+        };
+    }
+
+    private static boolean isPVR(RemoteDevice device) {
+        String name = device.getDisplayString();
+        return name != null && name.startsWith(DEVICE_PREFIX)
+                && device.findService(new UDAServiceType("ContentDirectory")) != null;
+    }
+
+    /**
+     * Get the Cling service, for the scanners to send requests through.
+     *
+     * @return UpnpService
+     */
+    UpnpService getUpnpService() {
+        return upnpService;
+    }
+
+    /**
+     * Look for media servers. Only devices with a ContentDirectory service
+     * answer, rather than everything on the network.
+     */
+    void startSearch() {
+        upnpService.getControlPoint().search(new UDADeviceTypeHeader(new UDADeviceType("MediaServer")));
+        upnpService.getControlPoint().search(new ServiceTypeHeader(new UDAServiceType("ContentDirectory")));
+    }
+
+    /**
+     * Fetch the description of a device we've connected to before, without
+     * waiting for it to answer a search. If it's there, it's added to the
+     * registry (and connected to) in the same way as a device that answered.
+     *
+     * @param descriptor String URL of the device description
+     * @param udn String unique device name
+     */
+    void probe(String descriptor, String udn) {
+        try {
+            RemoteDevice device = new RemoteDevice(new RemoteDeviceIdentity(
+                    new UDN(udn), PROBE_MAX_AGE, new URL(descriptor), null, null));
+            upnpService.getConfiguration().getAsyncProtocolExecutor().execute(
+                    new RetrieveRemoteDescriptors(upnpService, device));
+        } catch (MalformedURLException | ValidationException ex) {
+            log.warn("Can't probe {}: {}", descriptor, ex.getMessage());
+        }
+    }
+
+    /**
+     * Stop looking, and shut down Cling.
+     */
+    void stop() {
+        upnpService.shutdown();
+    }
+}
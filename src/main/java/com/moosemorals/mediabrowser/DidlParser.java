@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.io.IOException;
+import java.io.StringReader;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads DIDL-Lite (the XML in a Browse response) as a stream, handing over
+ * each container and item as it's read.
+ *
+ * <p>
+ * Cling builds a full DIDLContent for every response, with every resource and
+ * property of every item, when all we use is the id, the title and the first
+ * resource's URL and size. This keeps just those, so big pages don't make
+ * lots of garbage.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class DidlParser {
+
+    private static final String DC_NS = "http://purl.org/dc/elements/1.1/";
+
+    private static final ThreadLocal<SAXParser> PARSERS = new ThreadLocal<SAXParser>() {
+        @Override
+        protected SAXParser initialValue() {
+            try {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                return factory.newSAXParser();
+            } catch (ParserConfigurationException | SAXException ex) {
+                throw new IllegalStateException("Can't create XML parser", ex);
+            }
+        }
+    };
+
+    /**
+     * Gets the containers and items as they're read.
+     */
+    interface Handler {
+
+        /**
+         * Called for each container and item, in the order they're in the
+         * document.
+         *
+         * @param entry DlnaCache.Entry. Containers have a null url and a size
+         * of -1. Items have a size of -1 if the PVR didn't say.
+         */
+        void onEntry(DlnaCache.Entry entry);
+    }
+
+    private DidlParser() {
+        // Static only
+    }
+
+    /**
+     * Parse a DIDL-Lite document.
+     *
+     * @param didl String DIDL-Lite XML
+     * @param handler Handler to give entries to
+     * @throws IOException if the XML can't be parsed. Entries read before the
+     * problem will already have been handed over.
+     */
+    static void parse(String didl, Handler handler) throws IOException {
+        SAXParser parser = PARSERS.get();
+        try {
+            parser.parse(new InputSource(new StringReader(didl)), new DidlHandler(handler));
+        } catch (SAXException ex) {
+            throw new IOException("Can't parse DIDL: " + ex.getMessage(), ex);
+        } finally {
+            parser.reset();
+        }
+    }
+
+    private static class DidlHandler extends DefaultHandler {
+
+        private final Handler handler;
+        private final StringBuilder text = new StringBuilder();
+        private boolean inEntry = false;
+        private boolean folder;
+        private String id;
+        private String title;
+        private String url;
+        private long size;
+        // What the text being collected is for
+        private boolean inTitle = false;
+        private boolean inRes = false;
+
+        DidlHandler(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (!inEntry) {
+                if ("container".equals(localName) || "item".equals(localName)) {
+                    inEntry = true;
+                    folder = "container".equals(localName);
+                    id = attributes.getValue("id");
+                    title = null;
+                    url = null;
+                    size = -1;
+                }
+            } else if ("title".equals(localName) && DC_NS.equals(uri) && title == null) {
+                inTitle = true;
+                text.setLength(0);
+            } else if ("res".equals(localName) && !folder && url == null) {
+                inRes = true;
+                text.setLength(0);
+                size = parseSize(attributes.getValue("size"));
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inTitle || inRes) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (inTitle) {
+                title = text.toString();
+                inTitle = false;
+            } else if (inRes) {
+                String value = text.toString().trim();
+                url = value.isEmpty() ? null : value;
+                inRes = false;
+            } else if (inEntry && ("container".equals(localName) || "item".equals(localName))) {
+                inEntry = false;
+                handler.onEntry(new DlnaCache.Entry(title, id, url, size, folder));
+            }
+        }
+
+        private static long parseSize(String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+    }
+}
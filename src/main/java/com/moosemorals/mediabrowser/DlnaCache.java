@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers what the last DLNA scan found, so the next one can skip
+ * containers that haven't changed.
+ *
+ * <p>
+ * Each container is stored with the UpdateID the PVR gave when it was browsed.
+ * A scan builds a new set of containers (copying across the ones that were
+ * still valid) and only replaces the old set with {@link #commit(long)} when it
+ * finishes, so a scan that stops part way through leaves the last good results
+ * in place.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class DlnaCache {
+
+    /**
+     * Returned when there isn't an UpdateID.
+     */
+    static final long UNKNOWN = -1;
+
+    private final Map<String, CachedContainer> current = new HashMap<>();
+    private final Map<String, CachedContainer> building = new HashMap<>();
+    private long systemUpdateId = UNKNOWN;
+
+    /**
+     * Check if the whole cache can be used as is.
+     *
+     * @param root String id of the top level container
+     * @param id long SystemUpdateID from the PVR
+     * @return true if nothing has changed since the cache was built
+     */
+    synchronized boolean isValid(String root, long id) {
+        return id != UNKNOWN && id == systemUpdateId && current.containsKey(root);
+    }
+
+    /**
+     * Get the SystemUpdateID the cache was built for.
+     *
+     * @return long SystemUpdateID, or UNKNOWN
+     */
+    synchronized long getSystemUpdateId() {
+        return systemUpdateId;
+    }
+
+    /**
+     * Get the UpdateID that a container had when it was last browsed.
+     *
+     * @param id String container id
+     * @return long UpdateID, or UNKNOWN if the container isn't cached
+     */
+    synchronized long getUpdateId(String id) {
+        CachedContainer c = current.get(id);
+        return c != null ? c.updateId : UNKNOWN;
+    }
+
+    /**
+     * Get what was in a container when it was last browsed.
+     *
+     * @param id String container id
+     * @return List of Entries, or null if the container isn't cached
+     */
+    synchronized List<Entry> getEntries(String id) {
+        CachedContainer c = current.get(id);
+        return c != null ? c.getEntries() : null;
+    }
+
+    /**
+     * Start building a new set of containers.
+     */
+    synchronized void start() {
+        building.clear();
+    }
+
+    /**
+     * Start building a new set of containers that begins as a copy of the
+     * current set, for when only a few containers are being browsed again.
+     */
+    synchronized void startUpdate() {
+        building.clear();
+        building.putAll(current);
+    }
+
+    /**
+     * Carry a container that hasn't changed across to the new set.
+     *
+     * @param id String container id
+     */
+    synchronized void keep(String id) {
+        CachedContainer c = current.get(id);
+        if (c != null) {
+            building.put(id, c);
+        }
+    }
+
+    /**
+     * Add a page of browse results to the new set.
+     *
+     * @param id String container id
+     * @param updateId long UpdateID from the browse response
+     * @param first long index of the first entry in the page
+     * @param entries List of Entries in the page
+     */
+    synchronized void addPage(String id, long updateId, long first, List<Entry> entries) {
+        CachedContainer c = building.get(id);
+        if (c == null || c == current.get(id)) {
+            c = new CachedContainer(updateId);
+            building.put(id, c);
+        } else if (c.updateId != updateId) {
+            // Changed while we were reading it, don't trust any of it
+            c.complete = false;
+        }
+        c.pages.put(first, entries);
+    }
+
+    /**
+     * Mark a container as not fully read, so it won't be kept.
+     *
+     * @param id String container id
+     */
+    synchronized void markIncomplete(String id) {
+        CachedContainer c = building.get(id);
+        if (c != null) {
+            c.complete = false;
+        }
+    }
+
+    /**
+     * Replace the cache with what's been built since {@link #start()}.
+     * Containers that weren't fully read are left out, so they will be
+     * browsed again next time.
+     *
+     * @param id long SystemUpdateID from the start of the scan
+     */
+    synchronized void commit(long id) {
+        current.clear();
+        for (Map.Entry<String, CachedContainer> e : building.entrySet()) {
+            if (e.getValue().complete) {
+                current.put(e.getKey(), e.getValue());
+            }
+        }
+        building.clear();
+        systemUpdateId = id;
+    }
+
+    /**
+     * Forget everything.
+     */
+    synchronized void clear() {
+        current.clear();
+        building.clear();
+        systemUpdateId = UNKNOWN;
+    }
+
+    /**
+     * One thing in a container. Items have a url and (usually) a size.
+     */
+    static class Entry {
+
+        final String title;
+        final String id;
+        final String url;
+        final long size;
+        final boolean folder;
+
+        Entry(String title, String id, String url, long size, boolean folder) {
+            this.title = title;
+            this.id = id;
+            this.url = url;
+            this.size = size;
+            this.folder = folder;
+        }
+    }
+
+    private static class CachedContainer {
+
+        private final TreeMap<Long, List<Entry>> pages = new TreeMap<>();
+        private final long updateId;
+        private boolean complete = true;
+
+        CachedContainer(long updateId) {
+            this.updateId = updateId;
+        }
+
+        List<Entry> getEntries() {
+            List<Entry> result = new ArrayList<>();
+            for (List<Entry> page : pages.values()) {
+                result.addAll(page);
+            }
+            return result;
+        }
+    }
+}
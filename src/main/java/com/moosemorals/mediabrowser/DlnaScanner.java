@@ -23,23 +23,37 @@
  */
 package com.moosemorals.mediabrowser;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.fourthline.cling.UpnpService;
-import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
 import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.gena.CancelReason;
+import org.fourthline.cling.model.gena.GENASubscription;
 import org.fourthline.cling.model.message.UpnpResponse;
-import org.fourthline.cling.model.message.header.STAllHeader;
+import org.fourthline.cling.model.meta.Action;
 import org.fourthline.cling.model.meta.RemoteDevice;
 import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.state.StateVariableValue;
 import org.fourthline.cling.model.types.UDAServiceType;
-import org.fourthline.cling.registry.DefaultRegistryListener;
-import org.fourthline.cling.registry.Registry;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
 import org.fourthline.cling.support.contentdirectory.callback.Browse;
+import org.fourthline.cling.support.contentdirectory.callback.Search;
 import org.fourthline.cling.support.model.BrowseFlag;
+import org.fourthline.cling.support.model.BrowseResult;
 import org.fourthline.cling.support.model.DIDLContent;
 import org.fourthline.cling.support.model.Res;
 import org.fourthline.cling.support.model.container.Container;
@@ -53,100 +67,524 @@ import org.slf4j.LoggerFactory;
  */
 public class DlnaScanner implements Runnable {
 
-    //private static final String DEVICE_NAME = "HUMAX HDR-FOX T2 Undefine";
-    private static final String DEVICE_NAME = "HUMAX HDR-2000T Undefine";
+    public static final int DEFAULT_BROWSE_REQUESTS = 4;
 
-    private static final long PAGE_SIZE = 50;
+    private static final String ROOT_ID = "0\\1\\2";
+
+    /**
+     * How long to ask for event subscriptions to last, in seconds. Cling
+     * renews them before they run out, and a renewal failing is how we find
+     * out events have stopped, so this shouldn't be too long.
+     */
+    private static final int SUBSCRIPTION_DURATION = 300;
+
+    /**
+     * Most files to look up one at a time. Past this it's cheaper to browse
+     * everything.
+     */
+    private static final int RESOLVE_LIMIT = 20;
+
+    /**
+     * What a run of the DLNA thread is for.
+     */
+    private enum Mode {
+        /**
+         * Browse everything (or check it against the cache).
+         */
+        Full,
+        /**
+         * Browse a few containers that the PVR says have changed.
+         */
+        Refresh,
+        /**
+         * Look up download URLs for some files.
+         */
+        Resolve
+    }
 
     private final Logger log = LoggerFactory.getLogger(DlnaScanner.class);
     private final PVR pvr;
+    private final PVRDevice device;
     private final UpnpService upnpService;
     private final AtomicBoolean running;
-    private final List<DeviceBrowse> queue;
-    private final Object flag = new Object();
-    private final DefaultRegistryListener registryListener = new DefaultRegistryListener() {
-        private RemoteDevice connectedDevice = null;
-
-        @Override
-        public void remoteDeviceAdded(Registry registry, RemoteDevice device) {
-            if (DEVICE_NAME.equals(device.getDisplayString())) {
-                log.info("Connected to {}", DEVICE_NAME);
-                onConnect(device);
-                connectedDevice = device;
-            }
-        }
-
-        @Override
-        public void remoteDeviceRemoved(Registry registry, RemoteDevice device) {
-            if (device.equals(connectedDevice)) {
-                log.info("Disconnected from {}", DEVICE_NAME);
-                onDisconnect(device);
-                connectedDevice = null;
-            }
-        }
-    };
+    private final List<ActionCallback> queue;
+    private final int maxInFlight;
+    private final boolean streamingParse;
+    private final BrowsePageSizer sizer = new BrowsePageSizer();
+    private final DlnaCache cache = new DlnaCache();
+    private final Map<String, PVRFolder> containers = new HashMap<>();
+    private final Map<PVRFolder, String> containerIds = new HashMap<>();
     private Thread dlnaThread = null;
     private String remoteHostname = null;
+    private String descriptorURL = null;
+    private String udn = null;
     private Service service = null;
+    // Guarded by queue
+    private int inFlight = 0;
+    private int scanId = 0;
+    private Mode mode = Mode.Full;
+    private List<String> refreshTargets = null;
+    private List<PVRFile> resolveTargets = null;
+    private final Set<String> pendingRefresh = new LinkedHashSet<>();
+    private final Set<PVRFile> pendingResolve = new LinkedHashSet<>();
+    private final Set<String> browsedThisRun = new HashSet<>();
+    private boolean fullScanWanted = false;
+    // Guarded by this
+    private ContentSubscription subscription = null;
+    private long lastSystemUpdateId = DlnaCache.UNKNOWN;
+    private volatile boolean subscribed = false;
+    private volatile boolean stopped = false;
+    private volatile boolean searchUnsupported = false;
 
-    public DlnaScanner(PVR pvr) {
+    /**
+     * Create a scanner for one PVR. It does nothing until
+     * {@link #connect(RemoteDevice)} is called.
+     *
+     * @param pvr PVR to add files to
+     * @param device PVRDevice the scanner belongs to
+     * @param upnpService UpnpService to send requests through
+     * @param maxInFlight int how many Browse requests to have waiting for the
+     * PVR at once.
+     * @param streamingParse boolean true to read Browse responses with
+     * {@link DidlParser}, false to let Cling parse them.
+     */
+    DlnaScanner(PVR pvr, PVRDevice device, UpnpService upnpService, int maxInFlight, boolean streamingParse) {
         this.pvr = pvr;
-        upnpService = new UpnpServiceImpl(registryListener);
+        this.device = device;
+        this.upnpService = upnpService;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.streamingParse = streamingParse;
         queue = new ArrayList<>();
         running = new AtomicBoolean(false);
     }
 
-    void startSearch() {
-        upnpService.getControlPoint().search(new STAllHeader());
+    void startScan() {
+        if (service == null) {
+            log.warn("Can't start scanning DLNA, no service");
+            return;
+        }
+        synchronized (queue) {
+            if (!running.compareAndSet(false, true)) {
+                if (mode != Mode.Full) {
+                    // Only doing part of the job, do the full scan once
+                    // that's done.
+                    fullScanWanted = true;
+                }
+                return;
+            }
+            // Responses from an earlier scan that was stopped are ignored
+            scanId += 1;
+            inFlight = 0;
+            queue.clear();
+            mode = Mode.Full;
+            // A full scan finds everything, so there's nothing left to look up
+            pendingResolve.clear();
+        }
+
+        dlnaThread = new Thread(this, "DLNA " + device.getName());
+        dlnaThread.start();
+        notifyBrowseListeners(DeviceListener.ScanType.dlna, true);
     }
 
-    void startScan() {
-        if (service != null && running.compareAndSet(false, true)) {
+    /**
+     * Browse some containers again, without scanning everything else. If a
+     * scan is already running the containers are browsed once it's finished.
+     *
+     * @param ids Collection of container ids that have changed
+     */
+    void refreshContainers(Collection<String> ids) {
+        synchronized (queue) {
+            pendingRefresh.addAll(ids);
+        }
+        startRefresh();
+    }
 
-            dlnaThread = new Thread(this, "DLNA");
-            dlnaThread.start();
-            notifyBrowseListeners(DeviceListener.ScanType.dlna, true);
-            synchronized (queue) {
-                queue.add(new DeviceBrowse(service, "0\\1\\2", ((PVRFolder) pvr.getRoot()), 0));
-                queue.notifyAll();
+    private void startRefresh() {
+        synchronized (queue) {
+            if (service == null || pendingRefresh.isEmpty() || !running.compareAndSet(false, true)) {
+                return;
             }
-        } else if (service == null) {
-            log.warn("Can't start scanning DLNA, no service");
+            scanId += 1;
+            inFlight = 0;
+            queue.clear();
+            mode = Mode.Refresh;
+            refreshTargets = new ArrayList<>(pendingRefresh);
+            pendingRefresh.clear();
         }
+        dlnaThread = new Thread(this, "DLNA refresh " + device.getName());
+        dlnaThread.start();
     }
 
+    /**
+     * Find download URLs for files that FTP has found but DLNA hasn't,
+     * without browsing everything. Each file is looked up with a Search by
+     * title, or if the PVR can't search, by browsing its folder. If there are
+     * too many files, or we don't know the PVR's containers yet, this is a
+     * full scan instead.
+     *
+     * <p>
+     * Tells the listeners it is a DLNA scan, since it takes the place of one
+     * after an FTP scan.</p>
+     *
+     * @param files Collection of PVRFiles without a remote URL
+     */
+    void resolve(Collection<PVRFile> files) {
+        boolean known;
+        synchronized (containers) {
+            known = !containers.isEmpty();
+        }
+        if (!known || files.size() > RESOLVE_LIMIT) {
+            startScan();
+            return;
+        }
+        synchronized (queue) {
+            pendingResolve.addAll(files);
+        }
+        startResolve();
+    }
+
+    private void startResolve() {
+        synchronized (queue) {
+            if (service == null || !running.compareAndSet(false, true)) {
+                return;
+            }
+            scanId += 1;
+            inFlight = 0;
+            queue.clear();
+            mode = Mode.Resolve;
+            resolveTargets = new ArrayList<>(pendingResolve);
+            pendingResolve.clear();
+        }
+        dlnaThread = new Thread(this, "DLNA resolve " + device.getName());
+        dlnaThread.start();
+        notifyBrowseListeners(DeviceListener.ScanType.dlna, true);
+    }
+
+    /**
+     * Start anything that was asked for while the last scan was running.
+     */
+    private void startPending() {
+        boolean full;
+        boolean resolve;
+        synchronized (queue) {
+            full = fullScanWanted;
+            fullScanWanted = false;
+            resolve = !pendingResolve.isEmpty();
+        }
+        if (full) {
+            startScan();
+        } else if (resolve) {
+            startResolve();
+        } else {
+            startRefresh();
+        }
+    }
+
+    /**
+     * Sends queued Browse requests, keeping up to maxInFlight waiting for the
+     * PVR at once. Cling runs the callbacks on its own threads, and each one
+     * queues any folders (or pages) it finds before it counts as finished, so
+     * the scan is done when nothing is queued and nothing is in flight.
+     *
+     * <p>
+     * If the PVR's SystemUpdateID hasn't changed since the last complete scan
+     * the tree is filled from the cache without browsing anything. Otherwise
+     * containers whose ContainerUpdateID hasn't changed are filled from the
+     * cache, and only changed containers are browsed.</p>
+     *
+     * <p>
+     * A refresh (started by an event from the PVR) only browses the
+     * containers it was given, and doesn't tell the listeners. Resolving
+     * searches for each file it was given.</p>
+     */
     @Override
     public void run() {
-        DeviceBrowse next;
+        ActionCallback next;
+        int scan;
+        Mode runMode;
+        List<String> targets;
+        List<PVRFile> files;
+        synchronized (queue) {
+            scan = scanId;
+            runMode = mode;
+            targets = refreshTargets;
+            files = resolveTargets;
+            browsedThisRun.clear();
+        }
         try {
+            long systemUpdateId;
+            if (runMode == Mode.Full) {
+                systemUpdateId = fetchSystemUpdateId();
+                PVRFolder root = device.getRoot();
+                boolean unchanged = cache.isValid(ROOT_ID, systemUpdateId);
+                cache.start();
+                device.startDlnaPass();
+                if (unchanged) {
+                    log.info("SystemUpdateID unchanged ({}), using cached browse", systemUpdateId);
+                    useCached(ROOT_ID, root, true, scan);
+                } else {
+                    browseContainer(ROOT_ID, root, scan);
+                }
+            } else {
+                // Keep the SystemUpdateID from the last full scan. If the PVR
+                // still gives that id nothing has changed since anyway.
+                systemUpdateId = cache.getSystemUpdateId();
+                cache.startUpdate();
+                if (runMode == Mode.Refresh) {
+                    for (String id : targets) {
+                        PVRFolder folder = getContainerFolder(id);
+                        if (folder != null) {
+                            log.debug("Refreshing {}", id);
+                            browseOnce(id, folder, scan);
+                        }
+                    }
+                } else {
+                    log.info("Looking up {} new file(s)", files.size());
+                    for (PVRFile file : files) {
+                        if (file.getRemoteURL() != null) {
+                            continue;
+                        }
+                        if (searchUnsupported) {
+                            browseFolderOf(file, scan);
+                        } else {
+                            queueBrowse(new TitleSearch(service, file, scan), scan);
+                        }
+                    }
+                }
+            }
+
             while (running.get()) {
                 synchronized (queue) {
-                    while (queue.isEmpty()) {
+                    // Wait while we're at the limit, or while there's
+                    // nothing to send but answers may still bring more work
+                    while ((!queue.isEmpty() && inFlight >= maxInFlight)
+                            || (queue.isEmpty() && inFlight > 0)) {
                         queue.wait();
                     }
 
-                    next = queue.remove(0);
-                }
-                upnpService.getControlPoint().execute(next);
-                synchronized (flag) {
-                    flag.wait();
-                }
-                synchronized (queue) {
                     if (queue.isEmpty()) {
                         log.info("Browse complete");
+                        cache.commit(systemUpdateId);
+                        if (runMode == Mode.Full) {
+                            device.endDlnaPass();
+                        }
                         return;
                     }
+
+                    next = queue.remove(0);
+                    inFlight += 1;
                 }
+                upnpService.getControlPoint().execute(next);
             }
         } catch (InterruptedException ex) {
-            log.error("IOException in DLNA thread: {}", ex.getMessage(), ex);
+            log.info("DLNA thread interrupted, stopping");
         } finally {
             running.set(false);
-            notifyBrowseListeners(DeviceListener.ScanType.dlna, false);
+            if (runMode != Mode.Refresh) {
+                notifyBrowseListeners(DeviceListener.ScanType.dlna, false);
+            }
+            if (!stopped) {
+                startPending();
+            }
+        }
+    }
+
+    /**
+     * Queue a Browse request.
+     *
+     * @param browse Browse to queue
+     * @param scan int id of the scan the request belongs to
+     */
+    private void queueBrowse(ActionCallback browse, int scan) {
+        synchronized (queue) {
+            if (scan == scanId) {
+                queue.add(browse);
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called when a Browse request has finished, one way or another.
+     *
+     * @param scan int id of the scan the request belongs to
+     */
+    private void browseDone(int scan) {
+        synchronized (queue) {
+            if (scan == scanId) {
+                inFlight -= 1;
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Ask the PVR for its SystemUpdateID, which changes whenever anything on
+     * it changes. Waits for the answer.
+     *
+     * @return long SystemUpdateID, or DlnaCache.UNKNOWN if the PVR won't say
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long fetchSystemUpdateId() throws InterruptedException {
+        Action action = service.getAction("GetSystemUpdateID");
+        if (action == null) {
+            return DlnaCache.UNKNOWN;
+        }
+        final AtomicLong result = new AtomicLong(DlnaCache.UNKNOWN);
+        Future<?> f = upnpService.getControlPoint().execute(new ActionCallback(new ActionInvocation(action)) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                Object value = invocation.getOutput("Id").getValue();
+                if (value instanceof UnsignedIntegerFourBytes) {
+                    result.set(toUpdateId(((UnsignedIntegerFourBytes) value).getValue()));
+                }
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                log.warn("Can't get SystemUpdateID: {}", defaultMsg);
+            }
+        });
+        try {
+            f.get();
+        } catch (ExecutionException ex) {
+            log.warn("Can't get SystemUpdateID: {}", ex.getMessage());
+        }
+        return result.get();
+    }
+
+    /**
+     * Treat an UpdateID of zero as unknown, since some servers always send
+     * zero, and trusting that would mean never browsing again.
+     *
+     * @param id long UpdateID from the PVR
+     * @return long id, or DlnaCache.UNKNOWN
+     */
+    private static long toUpdateId(long id) {
+        return id == 0 ? DlnaCache.UNKNOWN : id;
+    }
+
+    /**
+     * Queue whatever is needed to scan a container. Containers in the cache
+     * get a cheap metadata browse to check their UpdateID, anything else is
+     * browsed in full.
+     *
+     * @param id String container id
+     * @param folder PVRFolder the container matches
+     * @param scan int id of the scan
+     */
+    private void browseContainer(String id, PVRFolder folder, int scan) {
+        setContainerFolder(id, folder);
+        if (cache.getUpdateId(id) != DlnaCache.UNKNOWN) {
+            queueBrowse(new CheckBrowse(service, id, folder, scan), scan);
+        } else {
+            queueBrowse(new DeviceBrowse(service, id, folder, 0, sizer.getPageSize(), false, scan), scan);
+        }
+    }
+
+    /**
+     * Fill a folder from the cache.
+     *
+     * @param id String container id
+     * @param parent PVRFolder the container matches
+     * @param deep boolean true to trust the cache for everything under the
+     * container too, false to check each child container with the PVR.
+     * @param scan int id of the scan
+     */
+    private void useCached(String id, PVRFolder parent, boolean deep, int scan) {
+        List<DlnaCache.Entry> entries = cache.getEntries(id);
+        if (entries == null) {
+            browseContainer(id, parent, scan);
+            return;
+        }
+        setContainerFolder(id, parent);
+        cache.keep(id);
+        for (DlnaCache.Entry e : entries) {
+            if (e.folder) {
+                PVRFolder folder = pvr.addFolder(parent, e.title);
+                folder.setDlnaScanned(true);
+                pvr.updateItem(folder);
+                if (deep) {
+                    useCached(e.id, folder, true, scan);
+                } else {
+                    browseContainer(e.id, folder, scan);
+                }
+            } else {
+                PVRFile file = device.addDlnaFile(parent, e.id, e.title, e.size, e.url);
+                pvr.updateItem(file);
+            }
+        }
+    }
+
+    private void setContainerFolder(String id, PVRFolder folder) {
+        synchronized (containers) {
+            containers.put(id, folder);
+            containerIds.put(folder, id);
+        }
+    }
+
+    private String getContainerId(PVRFolder folder) {
+        synchronized (containers) {
+            return containerIds.get(folder);
+        }
+    }
+
+    /**
+     * Browse a container in full, unless it's already been browsed in this
+     * run.
+     *
+     * @param id String container id
+     * @param folder PVRFolder the container matches
+     * @param scan int id of the scan
+     */
+    private void browseOnce(String id, PVRFolder folder, int scan) {
+        synchronized (queue) {
+            if (!browsedThisRun.add(id)) {
+                return;
+            }
+        }
+        queueBrowse(new DeviceBrowse(service, id, folder, 0, sizer.getPageSize(), false, scan), scan);
+    }
+
+    /**
+     * Find a file's URL by browsing the folder it's in. If we don't know
+     * which container that is, a full scan is done next.
+     *
+     * @param file PVRFile to find
+     * @param scan int id of the scan
+     */
+    private void browseFolderOf(PVRFile file, int scan) {
+        String id = getContainerId(file.getParent());
+        if (id != null) {
+            browseOnce(id, file.getParent(), scan);
+        } else {
+            log.debug("Don't know the container for {}, will scan everything", file.getRemotePath());
+            synchronized (queue) {
+                fullScanWanted = true;
+            }
+        }
+    }
+
+    /**
+     * Quote a value for use in a Search criteria string.
+     *
+     * @param value String to quote
+     * @return String value in double quotes, with quotes and backslashes
+     * escaped
+     */
+    static String quoteSearch(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private PVRFolder getContainerFolder(String id) {
+        synchronized (containers) {
+            return containers.get(id);
         }
     }
 
     void stop() {
+        stopped = true;
+        unsubscribe();
         if (running.compareAndSet(true, false) && dlnaThread != null) {
             dlnaThread.interrupt();
             log.info("Waiting for dlnaThread to finish");
@@ -162,72 +600,433 @@ public class DlnaScanner implements Runnable {
         return remoteHostname;
     }
 
-    private void onConnect(RemoteDevice device) {
-        remoteHostname = device.getIdentity().getDescriptorURL().getHost();
+    /**
+     * Get the URL of the connected device's description.
+     *
+     * @return String URL, or null if not connected
+     */
+    public String getDescriptorURL() {
+        return descriptorURL;
+    }
 
-        service = device.findService(new UDAServiceType("ContentDirectory"));
+    /**
+     * Get the unique device name of the connected device.
+     *
+     * @return String UDN, or null if not connected
+     */
+    public String getUdn() {
+        return udn;
+    }
+
+    /**
+     * Start talking to a PVR that's been found on the network.
+     *
+     * @param remote RemoteDevice from Cling
+     */
+    void connect(RemoteDevice remote) {
+        remoteHostname = remote.getIdentity().getDescriptorURL().getHost();
+        descriptorURL = remote.getIdentity().getDescriptorURL().toString();
+        udn = remote.getIdentity().getUdn().getIdentifierString();
 
+        service = remote.findService(new UDAServiceType("ContentDirectory"));
+
+        subscribe();
         notifyConnectionListeners(true);
     }
 
-    private void onDisconnect(RemoteDevice device) {
+    /**
+     * Stop talking to a PVR that's gone from the network.
+     */
+    void disconnect() {
+        unsubscribe();
+        cache.clear();
+        synchronized (containers) {
+            containers.clear();
+            containerIds.clear();
+        }
         notifyConnectionListeners(false);
     }
 
+    /**
+     * Ask the PVR to tell us when its content changes. Does nothing if
+     * already subscribed (or waiting to hear back).
+     */
+    void subscribe() {
+        ContentSubscription s;
+        synchronized (this) {
+            if (service == null || subscription != null) {
+                return;
+            }
+            s = new ContentSubscription(service);
+            subscription = s;
+        }
+        upnpService.getControlPoint().execute(s);
+    }
+
+    private void unsubscribe() {
+        ContentSubscription s;
+        synchronized (this) {
+            s = subscription;
+            subscription = null;
+            subscribed = false;
+        }
+        if (s != null) {
+            s.end();
+        }
+    }
+
+    /**
+     * Check if the PVR is sending us events. When it isn't, changes have to be
+     * found by polling.
+     *
+     * @return true if there is a working subscription
+     */
+    boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * Work out what an event from the PVR means. Containers we know about
+     * whose UpdateID has changed are browsed again. If the SystemUpdateID
+     * changed but no container we know about did, the PVR is asked to check
+     * for changes in the usual way.
+     *
+     * @param values Map of evented state variables
+     */
+    private void onEvent(Map<String, StateVariableValue> values) {
+        StateVariableValue containerIds = values.get("ContainerUpdateIDs");
+        StateVariableValue systemId = values.get("SystemUpdateID");
+
+        List<String> changed = new ArrayList<>();
+        if (containerIds != null && containerIds.getValue() != null) {
+            for (Map.Entry<String, Long> e : parseContainerUpdateIds(containerIds.getValue().toString()).entrySet()) {
+                if (getContainerFolder(e.getKey()) != null && cache.getUpdateId(e.getKey()) != toUpdateId(e.getValue())) {
+                    changed.add(e.getKey());
+                }
+            }
+        }
+
+        boolean systemChanged = false;
+        if (systemId != null && systemId.getValue() instanceof UnsignedIntegerFourBytes) {
+            long id = ((UnsignedIntegerFourBytes) systemId.getValue()).getValue();
+            synchronized (this) {
+                systemChanged = lastSystemUpdateId != DlnaCache.UNKNOWN && lastSystemUpdateId != id;
+                lastSystemUpdateId = id;
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            log.info("PVR says {} container(s) changed", changed.size());
+            refreshContainers(changed);
+        }
+        if (systemChanged) {
+            device.onContentChanged();
+        }
+    }
+
+    /**
+     * Parse the ContainerUpdateIDs state variable, which is a comma separated
+     * list of container id, UpdateID pairs. Commas and backslashes in ids are
+     * escaped with a backslash.
+     *
+     * @param value String value of ContainerUpdateIDs
+     * @return Map of container id to UpdateID, in the order given
+     */
+    static Map<String, Long> parseContainerUpdateIds(String value) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < value.length(); i += 1) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length() && (value.charAt(i + 1) == ',' || value.charAt(i + 1) == '\\')) {
+                field.append(value.charAt(i + 1));
+                i += 1;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            try {
+                result.put(fields.get(i), Long.parseLong(fields.get(i + 1)));
+            } catch (NumberFormatException ex) {
+                // Skip the pair
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Part of the Cling framework. Listens for events from the PVR's
+     * ContentDirectory service.
+     */
+    private class ContentSubscription extends SubscriptionCallback {
+
+        ContentSubscription(Service service) {
+            super(service, SUBSCRIPTION_DURATION);
+        }
+
+        @Override
+        protected void established(GENASubscription sub) {
+            log.info("Subscribed to content events for {} seconds", sub.getActualDurationSeconds());
+            subscribed = true;
+        }
+
+        @Override
+        protected void failed(GENASubscription sub, UpnpResponse responseStatus, Exception exception, String defaultMsg) {
+            log.warn("Can't subscribe to content events, polling instead: {}", defaultMsg);
+            lost();
+        }
+
+        @Override
+        protected void ended(GENASubscription sub, CancelReason reason, UpnpResponse responseStatus) {
+            if (reason != null) {
+                log.warn("Content event subscription ended ({}), polling instead", reason);
+            }
+            lost();
+        }
+
+        @Override
+        protected void eventReceived(GENASubscription sub) {
+            onEvent(sub.getCurrentValues());
+        }
+
+        @Override
+        protected void eventsMissed(GENASubscription sub, int numberOfMissedEvents) {
+            log.warn("Missed {} content events", numberOfMissedEvents);
+            device.onContentChanged();
+        }
+
+        private void lost() {
+            synchronized (DlnaScanner.this) {
+                if (subscription == this) {
+                    subscription = null;
+                    subscribed = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Boil Cling's parsed DIDL down to the entries we keep. Containers come
+     * first, then items.
+     *
+     * @param didl DIDLContent from Cling
+     * @return List of DlnaCache.Entries
+     */
+    private static List<DlnaCache.Entry> toEntries(DIDLContent didl) {
+        List<DlnaCache.Entry> entries = new ArrayList<>();
+        for (Container c : didl.getContainers()) {
+            entries.add(new DlnaCache.Entry(c.getTitle(), c.getId(), null, -1, true));
+        }
+        for (Item i : didl.getItems()) {
+            Res res = i.getFirstResource();
+            String url = null;
+            long size = -1;
+            if (res != null) {
+                url = res.getValue();
+                if (res.getSize() != null) {
+                    size = res.getSize();
+                }
+            }
+            entries.add(new DlnaCache.Entry(i.getTitle(), i.getId(), url, size, false));
+        }
+        return entries;
+    }
+
     /**
      * Part of the Cling framework. This class implements the dlna device search
      * stuff.
+     *
+     * <p>
+     * The first page of a folder uses the PVR's TotalMatches to queue all the
+     * other pages at once (as "planned" pages), so they can be in flight
+     * together. If the PVR doesn't say how many entries there are, pages are
+     * fetched one after another until a short one comes back.</p>
+     *
+     * <p>
+     * Unless it's turned off, the response is read with {@link DidlParser}
+     * and Cling's own parsing is skipped. If that can't read it, Cling gets
+     * a go instead.</p>
      */
     private class DeviceBrowse extends Browse {
 
         private final PVRFolder parent;
         private final Service service;
         private final String id;
-        private final int page;
+        private final long first;
+        private final int count;
+        private final boolean planned;
+        private final int scan;
+        private long started;
+        private long totalMatches = 0;
+        private long updateId = DlnaCache.UNKNOWN;
+        private List<DlnaCache.Entry> streamed = null;
 
-        DeviceBrowse(Service service, String id, PVRFolder parent, int page) {
-            super(service, id, BrowseFlag.DIRECT_CHILDREN, CAPS_WILDCARD, page * PAGE_SIZE, PAGE_SIZE);
+        DeviceBrowse(Service service, String id, PVRFolder parent, long first, int count, boolean planned, int scan) {
+            super(service, id, BrowseFlag.DIRECT_CHILDREN, CAPS_WILDCARD, first, (long) count);
             this.id = id;
-            this.page = page;
+            this.first = first;
+            this.count = count;
+            this.planned = planned;
             this.parent = parent;
             this.service = service;
+            this.scan = scan;
+        }
+
+        @Override
+        public void run() {
+            started = System.currentTimeMillis();
+            super.run();
+        }
+
+        @Override
+        public boolean receivedRaw(ActionInvocation actionInvocation, BrowseResult browseResult) {
+            totalMatches = browseResult.getTotalMatchesLong();
+            updateId = toUpdateId(browseResult.getContainerUpdateIDLong());
+            if (!streamingParse || browseResult.getResult() == null) {
+                return true;
+            }
+            final List<DlnaCache.Entry> entries = new ArrayList<>();
+            try {
+                DidlParser.parse(browseResult.getResult(), new DidlParser.Handler() {
+                    @Override
+                    public void onEntry(DlnaCache.Entry entry) {
+                        entries.add(entry);
+                    }
+                });
+            } catch (IOException ex) {
+                log.warn("Can't stream browse of {}, letting Cling parse it: {}", id, ex.getMessage());
+                return true;
+            }
+            streamed = entries;
+            // Cling skips its parse, and calls received with empty content
+            return false;
         }
 
         @Override
         public void received(ActionInvocation actionInvocation, DIDLContent didl) {
-            List<Container> containers = didl.getContainers();
+            try {
+                List<DlnaCache.Entry> entries = streamed != null ? streamed : toEntries(didl);
 
-            for (Container c : containers) {
-                PVRFolder folder = pvr.addFolder(parent, c.getTitle());
-                folder.setDlnaScanned(true);
-                pvr.updateItem(folder);
-                synchronized (queue) {
-                    queue.add(new DeviceBrowse(service, c.getId(), folder, 0));
-                    queue.notifyAll();
+                for (DlnaCache.Entry e : entries) {
+                    if (e.folder) {
+                        PVRFolder folder = pvr.addFolder(parent, e.title);
+                        folder.setDlnaScanned(true);
+                        pvr.updateItem(folder);
+                        browseContainer(e.id, folder, scan);
+                    } else {
+                        PVRFile file = device.addDlnaFile(parent, e.id, e.title, e.size, e.url);
+                        pvr.updateItem(file);
+                    }
+                }
+                cache.addPage(id, updateId, first, entries);
+
+                int returned = entries.size();
+                sizer.onSuccess(count, returned, System.currentTimeMillis() - started);
+
+                long next = first + returned;
+                if (planned) {
+                    // The PVR may send fewer than asked for. Pick up the
+                    // rest of this page's range.
+                    if (returned > 0 && returned < count && next < totalMatches) {
+                        queueBrowse(new DeviceBrowse(service, id, parent, next, count - returned, true, scan), scan);
+                    }
+                } else if (totalMatches > next) {
+                    if (returned > 0) {
+                        planPages(next, totalMatches);
+                    }
+                } else if (totalMatches == 0 && returned > 0 && returned == count) {
+                    // No total, so keep going until a short page
+                    queueBrowse(new DeviceBrowse(service, id, parent, next, sizer.getPageSize(), false, scan), scan);
                 }
+            } finally {
+                browseDone(scan);
+            }
+        }
 
+        /**
+         * Queue the pages needed to cover [from, to) at the current page
+         * size.
+         *
+         * @param from long first entry
+         * @param to long one past the last entry
+         */
+        private void planPages(long from, long to) {
+            int size = sizer.getPageSize();
+            for (long start = from; start < to; start += size) {
+                queueBrowse(new DeviceBrowse(service, id, parent, start, (int) Math.min(size, to - start), true, scan), scan);
             }
-            List<Item> items = didl.getItems();
+        }
 
-            for (Item i : items) {
-                PVRFile file = pvr.addFile(parent, i.getTitle());
+        @Override
+        public void updateStatus(Browse.Status status) {
 
-                file.setDlnaScanned(true);
+        }
 
-                Res res = i.getFirstResource();
-                if (res != null) {
-                    file.setRemoteURL(res.getValue());
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            try {
+                if (count > BrowsePageSizer.MIN_SIZE) {
+                    // Usually a timeout. Ask again for less.
+                    sizer.onFailure(count);
+                    log.warn("Browse of {} entries failed, retrying smaller: {}", count, defaultMsg);
+                    if (planned) {
+                        planPages(first, first + count);
+                    } else {
+                        queueBrowse(new DeviceBrowse(service, id, parent, first, Math.min(count / 2, sizer.getPageSize()), false, scan), scan);
+                    }
+                } else {
+                    log.error("Scan failure of some type: {}", defaultMsg);
+                    cache.markIncomplete(id);
                 }
-                pvr.updateItem(file);
+            } finally {
+                browseDone(scan);
             }
+        }
+    }
 
-            if (items.size() + containers.size() == PAGE_SIZE) {
-                // Get next page
-                queue.add(new DeviceBrowse(service, id, parent, page + 1));
-            }
+    /**
+     * Asks for the metadata of a cached container, to see if its UpdateID has
+     * changed since it was last browsed.
+     */
+    private class CheckBrowse extends Browse {
+
+        private final PVRFolder parent;
+        private final Service service;
+        private final String id;
+        private final int scan;
+        private long updateId = DlnaCache.UNKNOWN;
+
+        CheckBrowse(Service service, String id, PVRFolder parent, int scan) {
+            super(service, id, BrowseFlag.METADATA);
+            this.id = id;
+            this.parent = parent;
+            this.service = service;
+            this.scan = scan;
+        }
 
-            synchronized (flag) {
-                flag.notifyAll();
+        @Override
+        public boolean receivedRaw(ActionInvocation actionInvocation, BrowseResult browseResult) {
+            updateId = toUpdateId(browseResult.getContainerUpdateIDLong());
+            // Only the UpdateID is wanted, don't bother parsing the DIDL
+            return false;
+        }
+
+        @Override
+        public void received(ActionInvocation actionInvocation, DIDLContent didl) {
+            try {
+                if (updateId != DlnaCache.UNKNOWN && updateId == cache.getUpdateId(id)) {
+                    useCached(id, parent, false, scan);
+                } else {
+                    queueBrowse(new DeviceBrowse(service, id, parent, 0, sizer.getPageSize(), false, scan), scan);
+                }
+            } finally {
+                browseDone(scan);
             }
         }
 
@@ -238,9 +1037,78 @@ public class DlnaScanner implements Runnable {
 
         @Override
         public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
-            log.error("Scan failure of some type");
-            synchronized (flag) {
-                flag.notifyAll();
+            try {
+                log.warn("Can't check {}, browsing it: {}", id, defaultMsg);
+                queueBrowse(new DeviceBrowse(service, id, parent, 0, sizer.getPageSize(), false, scan), scan);
+            } finally {
+                browseDone(scan);
+            }
+        }
+    }
+
+    /**
+     * Part of the Cling framework. Searches for a single file by title, and
+     * sets its URL if it's found.
+     */
+    private class TitleSearch extends Search {
+
+        private final PVRFile file;
+        private final int scan;
+
+        TitleSearch(Service service, PVRFile file, int scan) {
+            super(service, ROOT_ID, "dc:title = " + quoteSearch(file.getRemoteFilename()));
+            this.file = file;
+            this.scan = scan;
+        }
+
+        @Override
+        public void received(ActionInvocation actionInvocation, DIDLContent didl) {
+            try {
+                String wantedParent = getContainerId(file.getParent());
+                Item match = null;
+                int found = 0;
+                for (Item i : didl.getItems()) {
+                    if (!file.getRemoteFilename().equals(i.getTitle())) {
+                        continue;
+                    }
+                    if (wantedParent != null && wantedParent.equals(i.getParentID())) {
+                        match = i;
+                        found = 1;
+                        break;
+                    }
+                    match = i;
+                    found += 1;
+                }
+
+                if (found == 1 && match.getFirstResource() != null) {
+                    file.setRemoteURL(match.getFirstResource().getValue());
+                    file.setDlnaScanned(true);
+                    pvr.updateItem(file);
+                } else {
+                    // Not there yet, or more than one with this title
+                    log.debug("Search found {} match(es) for {}", found, file.getRemotePath());
+                    browseFolderOf(file, scan);
+                }
+            } finally {
+                browseDone(scan);
+            }
+        }
+
+        @Override
+        public void updateStatus(Search.Status status) {
+
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            try {
+                if (!searchUnsupported) {
+                    log.warn("Search failed, browsing folders instead: {}", defaultMsg);
+                    searchUnsupported = true;
+                }
+                browseFolderOf(file, scan);
+            } finally {
+                browseDone(scan);
             }
         }
     }
@@ -24,6 +24,7 @@
 package com.moosemorals.mediabrowser;
 
 import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_COUNT;
+import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_DEVICE;
 import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_LIST;
 import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_LOCAL;
 import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_REMOTE;
@@ -42,10 +43,12 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -63,9 +66,13 @@ import org.slf4j.LoggerFactory;
  * Keep track of files that need downloading and their status, and then download
  * them.
  *
+ * <p>
+ * Each PVR gets its own download thread, so files on different PVRs download
+ * at the same time, but only one file at a time comes from any one PVR.</p>
+ *
  * @author Osric Wilkinson (osric@fluffypeople.com)
  */
-public final class DownloadManager implements ListModel<DownloadManager.QueueItem>, Runnable {
+public final class DownloadManager implements ListModel<DownloadManager.QueueItem> {
 
     public static final int DEFAULT_PRIORITY = Integer.MAX_VALUE;
 
@@ -82,10 +89,8 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
     private final Set<DownloadStatusListener> statusListeners;
     private final MoveManager moveManager;
     private final List<SavedItem> savedQueue;
-
-    private Thread downloadThread;
-
-    private QueueItem current;
+    // Guarded by queue. Keyed by the folder of the PVR they download from.
+    private final Map<PVRFolder, Worker> workers = new HashMap<>();
 
     private DownloadManager(Main main) {
         this.main = main;
@@ -128,8 +133,9 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         if (running.compareAndSet(false, true)) {
 
             if (areDownloadsAvailible()) {
-                downloadThread = new Thread(this, "Download");
-                downloadThread.start();
+                synchronized (queue) {
+                    startWorkers();
+                }
                 notifyDownloadStatusChanged(true);
             }
         }
@@ -176,78 +182,76 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
     }
 
     /**
-     * Waits for the next download to get queued, and then downloads it.
+     * Start a download thread for each PVR that has files waiting and doesn't
+     * have one. Must be called holding the queue lock.
      */
-    @Override
-    public void run() {
-        try {
-            while (running.get()) {
-                QueueItem next;
-
-                synchronized (queue) {
-                    while (!areDownloadsAvailible()) {
-                        queue.wait();
-                    }
-                    next = getNextItem();
-                }
-
-                if (next == null) {
-                    throw new RuntimeException("Target is null, but it really shouldn't be");
-                }
-
-                current = next;
-                try {
-                    next.download();
-                } catch (IOException ex) {
-                    log.error("Unexpected issue with download: {}", ex.getMessage(), ex);
-                    next.setState(QueueItem.State.Error);
-                }
-
-                current = null;
-                notifyListDataListeners();
-                notifyStatusListeners();
-
-                if (!prefs.getBoolean(Main.KEY_AUTO_DOWNLOAD, false) || !areDownloadsAvailible()) {
-                    log.debug("Stopping downloads : Auto download {} areAvailible {}", prefs.getBoolean(Main.KEY_AUTO_DOWNLOAD, false), areDownloadsAvailible());
-                    stop();
-                    return;
+    private void startWorkers() {
+        if (!running.get()) {
+            return;
+        }
+        for (QueueItem i : queue) {
+            if (i.getState() == QueueItem.State.Queued || i.getState() == QueueItem.State.Paused) {
+                PVRFolder device = i.getTarget().getDeviceFolder();
+                if (!workers.containsKey(device)) {
+                    Worker worker = new Worker(device);
+                    workers.put(device, worker);
+                    worker.start();
                 }
-
             }
-        } catch (InterruptedException ex) {
-            log.info("Interrupted waiting for next queue item. Assuming we're being told to stop");
+        }
+    }
 
-        } finally {
-            running.set(false);
+    /**
+     * Called by a download thread as it finishes. Downloads have stopped
+     * once the last one has.
+     *
+     * @param worker Worker that's finished
+     */
+    private void workerDone(Worker worker) {
+        boolean last;
+        synchronized (queue) {
+            if (workers.get(worker.device) == worker) {
+                workers.remove(worker.device);
+            }
+            last = workers.isEmpty();
+            if (last) {
+                running.set(false);
+            }
+        }
+        if (last) {
             notifyDownloadStatusChanged(false);
-
-            notifyListDataListeners();
-            notifyStatusListeners();
         }
+        notifyListDataListeners();
+        notifyStatusListeners();
     }
 
     /**
-     * Stops the download thread and any in-progress downloads. Waits for the
-     * download thread to finish before returning.
+     * Stops the download threads and any in-progress downloads. Waits for the
+     * download threads to finish before returning.
      */
     public void stop() {
-        if (running.compareAndSet(true, false)) {
-            if (current != null) {
-                current.stop();
+        List<Worker> stopping;
+        synchronized (queue) {
+            if (!running.compareAndSet(true, false)) {
+                return;
             }
+            stopping = new ArrayList<>(workers.values());
+        }
 
-            downloadThread.interrupt();
+        for (Worker w : stopping) {
+            w.stop();
+        }
+        for (Worker w : stopping) {
             try {
-                log.info("Waiting for download thread to finish");
-                downloadThread.join();
+                log.info("Waiting for {} to finish", w.thread.getName());
+                w.thread.join();
             } catch (InterruptedException ex) {
                 log.error("Interrupted while waiting for download thread to finish, ignoring");
             }
-            downloadThread = null;
-
-            notifyListDataListeners();
-            notifyStatusListeners();
         }
+
+        notifyListDataListeners();
+        notifyStatusListeners();
     }
 
     /**
@@ -277,7 +281,7 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         synchronized (queue) {
             QueueItem item = null;
             for (QueueItem i : queue) {
-                if (i.getTarget().equals(target)) {
+                if (i.getTarget().isSamePath(target)) {
                     item = i;
                     break;
                 }
@@ -295,7 +299,7 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
 
             item.checkTarget();
 
-            queue.notifyAll();
+            startWorkers();
         }
 
         notifyListDataListeners();
@@ -324,6 +328,22 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         notifyListDataListeners();
     }
 
+    /**
+     * Change how a list of queued files will be downloaded. Takes effect the
+     * next time each file starts downloading.
+     *
+     * @param files List of QueueItems to change
+     * @param transport Transport to use
+     */
+    public void changeTransport(List<QueueItem> files, QueueItem.Transport transport) {
+        synchronized (queue) {
+            for (QueueItem item : files) {
+                item.setTransport(transport);
+            }
+        }
+        notifyListDataListeners();
+    }
+
     /**
      * Move an (already queued) list of files to (before) the specified row.
      *
@@ -342,7 +362,7 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
             }
 
             saveQueue();
-            queue.notifyAll();
+            startWorkers();
         }
         notifyListDataListeners();
         notifyStatusListeners();
@@ -379,7 +399,7 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
             }
 
             saveQueue();
-            queue.notifyAll();
+            startWorkers();
         }
 
         notifyListDataListeners();
@@ -423,8 +443,8 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
      * Checks if there is a download in progress.
      *
      * <p>
-     * Strictly, checks if the download thread is running, but that should exit
-     * once the queue is empty (or after the current download if
+     * Strictly, checks if any download threads are running, but they should
+     * exit once the queue is empty (or after the current download if
      * not-auto-download is set.
      *
      * @return boolean true if we're downloading, false otherwise.
@@ -557,17 +577,30 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         notifyStatusListeners(-1.0);
     }
 
+    /**
+     * Tell listeners how the downloads are going. The rate given is for one
+     * file, so it's replaced by the total for every file that's downloading.
+     *
+     * @param rate double download speed of one file, or -1 if not known
+     */
     private void notifyStatusListeners(double rate) {
 
         long totalQueued = 0;
         long totalDownloaded = 0;
+        double totalRate = 0;
 
         synchronized (queue) {
             for (QueueItem i : queue) {
                 totalQueued += i.getTarget().getSize();
                 totalDownloaded += i.getDownloaded();
+                if (i.getState() == QueueItem.State.Downloading) {
+                    totalRate += i.rate;
+                }
             }
         }
+        if (rate >= 0) {
+            rate = totalRate;
+        }
 
         synchronized (statusListeners) {
             for (DownloadStatusListener dsl : statusListeners) {
@@ -587,9 +620,17 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         return result;
     }
 
-    private QueueItem getNextItem() {
+    /**
+     * Find the next file to download from a PVR. Must be called holding the
+     * queue lock.
+     *
+     * @param device PVRFolder of the PVR
+     * @return QueueItem, or null if there's nothing left to download from it
+     */
+    private QueueItem getNextItem(PVRFolder device) {
         for (QueueItem i : queue) {
-            if (i.getState() == QueueItem.State.Queued || i.getState() == QueueItem.State.Paused) {
+            if ((i.getState() == QueueItem.State.Queued || i.getState() == QueueItem.State.Paused)
+                    && i.getTarget().getDeviceFolder() == device) {
                 return i;
             }
         }
@@ -600,13 +641,26 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         if (item.isFile()) {
             PVRFile remote = (PVRFile) item;
             for (SavedItem i : savedQueue) {
-                if (i.remotePath.equals(item.getRemotePath())) {
+                if (i.remotePath.equals(item.getRemotePath())
+                        && (i.device == null || i.device.equals(getDeviceId(item)))) {
                     add(remote, i.localPath, i.priority);
                 }
             }
         } 
     }
 
+    /**
+     * Get the UDN of the PVR an item is on, so saved downloads can tell PVRs
+     * apart.
+     *
+     * @param item PVRItem to look up
+     * @return String UDN, or null if it's not known
+     */
+    private String getDeviceId(PVRItem item) {
+        PVRDevice device = main.getPVR().getDevice(item);
+        return device != null ? device.getUdn() : null;
+    }
+
     private void sortQueue() {
         synchronized (queue) {
             Collections.sort(queue);
@@ -625,8 +679,9 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
             for (int i = 0; i < count; i += 1) {
                 String remotePath = prefs.get(KEY_SAVE_DOWNLOAD_REMOTE + i, null);
                 String localPath = prefs.get(KEY_SAVE_DOWNLOAD_LOCAL + i, null);
+                String device = prefs.get(KEY_SAVE_DOWNLOAD_DEVICE + i, null);
                 if (remotePath != null && localPath != null) {
-                    result.add(new SavedItem(localPath, remotePath, i));
+                    result.add(new SavedItem(localPath, remotePath, device, i));
                 }
             }
         }
@@ -639,6 +694,7 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         for (int i = 0; i < count; i += 1) {
             prefs.remove(KEY_SAVE_DOWNLOAD_REMOTE + i);
             prefs.remove(KEY_SAVE_DOWNLOAD_LOCAL + i);
+            prefs.remove(KEY_SAVE_DOWNLOAD_DEVICE + i);
         }
         prefs.remove(KEY_SAVE_DOWNLOAD_COUNT);
     }
@@ -659,6 +715,10 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
                     log.debug("Saving {} {} {}", count, item.getLocalPath().getPath(), file.getRemotePath());
                     prefs.put(KEY_SAVE_DOWNLOAD_LOCAL + count, item.getLocalPath().getPath());
                     prefs.put(KEY_SAVE_DOWNLOAD_REMOTE + count, file.getRemotePath());
+                    String device = getDeviceId(file);
+                    if (device != null) {
+                        prefs.put(KEY_SAVE_DOWNLOAD_DEVICE + count, device);
+                    }
                     count += 1;
                 }
             }
@@ -706,7 +766,9 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
         private File localPath = null;
         private String localFilename = null;
         private State state;
+        private volatile double rate = 0;
         private State oldState;
+        private Transport transport = Transport.Auto;
 
         public QueueItem(PVRFile target) {
             this.running = new AtomicBoolean(false);
@@ -815,6 +877,25 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
             return oldState;
         }
 
+        /**
+         * Get how this file will be downloaded.
+         *
+         * @return Transport
+         */
+        public Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * Set how this file should be downloaded. Auto picks HTTP or FTP when
+         * the download starts.
+         *
+         * @param transport Transport to use.
+         */
+        void setTransport(Transport transport) {
+            this.transport = transport;
+        }
+
         public long getSize() {
             return target.getSize();
         }
@@ -852,30 +933,38 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
             running.set(true);
 
             File downloadTarget = getDownloadTarget();
-            URL url = new URL(target.getRemoteURL());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            boolean append = false;
 
-            if (getState() == State.Paused) {
-                connection.setRequestProperty("Range", "bytes=" + getDownloaded() + "-");
+            if (getState() != State.Paused) {
+                setDownloaded(0);
             }
 
-            log.info("Downloading {} from {} ", target.getTitle(), target.getRemoteURL());
-            connection.connect();
-
-            if (connection.getResponseCode() == 206) {
-                // Partial content
-                log.debug("Connection says sure, partial is fine: {}", connection.getHeaderField("Content-Range"));
-                append = true;
+            Transport using = chooseTransport();
+            InputStream remote;
+            if (using == Transport.Http) {
+                try {
+                    remote = openHttp();
+                } catch (IOException ex) {
+                    if (transport != Transport.Auto || !target.isFtpScanned()) {
+                        throw ex;
+                    }
+                    log.warn("Can't download {} over HTTP, trying FTP: {}", target.getTitle(), ex.getMessage());
+                    using = Transport.Ftp;
+                    remote = openFtp();
+                }
+            } else {
+                remote = openFtp();
             }
 
+            boolean append = getDownloaded() > 0;
+            long startTime = System.currentTimeMillis();
+            long startDownloaded = getDownloaded();
+
             setState(State.Downloading);
 
             long lastDisplay = System.currentTimeMillis();
             long lastDownloaded = getDownloaded();
 
-            try (InputStream in = new BufferedInputStream(connection.getInputStream()); OutputStream out = new BufferedOutputStream(new FileOutputStream(downloadTarget, append))) {
+            try (InputStream in = new BufferedInputStream(remote); OutputStream out = new BufferedOutputStream(new FileOutputStream(downloadTarget, append))) {
                 byte[] buffer = new byte[BUFFER_SIZE];
                 long count = getDownloaded();
                 int bytesRead;
@@ -894,6 +983,7 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
                         rate *= 1000;
 
                         parent.notifyListDataListeners();
+                        this.rate = rate;
                         parent.notifyStatusListeners(rate);
 
                         lastDisplay = timeNow;
@@ -927,6 +1017,12 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
                 return;
             }
 
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed > 0) {
+                log.info("Downloaded {} of {} over {} at {}/s", PVR.humanReadableSize(getDownloaded() - startDownloaded), target.getTitle(),
+                        using, PVR.humanReadableSize((getDownloaded() - startDownloaded) * 1000 / elapsed));
+            }
+
             // Check for move
             if (getState() == State.Moving) {
                 try {
@@ -958,6 +1054,67 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
             }
         }
 
+        /**
+         * Work out how to download this file. If the transport hasn't been set
+         * then use HTTP if DLNA has found the file, unless the user would
+         * rather use FTP.
+         *
+         * @return Transport to use, never Auto.
+         */
+        private Transport chooseTransport() {
+            if (transport != Transport.Auto) {
+                return transport;
+            }
+            boolean preferFtp = parent.prefs.getBoolean(Main.KEY_DOWNLOAD_OVER_FTP, false);
+            if (target.getRemoteURL() == null || (preferFtp && target.isFtpScanned())) {
+                return Transport.Ftp;
+            }
+            return Transport.Http;
+        }
+
+        /**
+         * Open the file from the DLNA server, asking for the rest of the file
+         * if we've already got some. Resets the downloaded count if the server
+         * sends the whole file anyway.
+         *
+         * @return InputStream of the file.
+         * @throws IOException
+         */
+        private InputStream openHttp() throws IOException {
+            if (target.getRemoteURL() == null) {
+                throw new IOException("No DLNA URL for " + target.getRemoteFilename());
+            }
+            URL url = new URL(target.getRemoteURL());
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            if (getDownloaded() > 0) {
+                connection.setRequestProperty("Range", "bytes=" + getDownloaded() + "-");
+            }
+
+            log.info("Downloading {} from {} ", target.getTitle(), target.getRemoteURL());
+            connection.connect();
+
+            if (connection.getResponseCode() == 206) {
+                // Partial content
+                log.debug("Connection says sure, partial is fine: {}", connection.getHeaderField("Content-Range"));
+            } else {
+                setDownloaded(0);
+            }
+            return connection.getInputStream();
+        }
+
+        /**
+         * Open the file over FTP, using REST to skip the part we've already
+         * got.
+         *
+         * @return InputStream of the file.
+         * @throws IOException
+         */
+        private InputStream openFtp() throws IOException {
+            log.info("Downloading {} from ftp:{}", target.getTitle(), target.getRemotePath());
+            return parent.main.getPVR().retrieveFile(target, getDownloaded());
+        }
+
         public void rename(File newPath) {
             File oldTarget, newTarget, newComplete;
 
@@ -1082,6 +1239,90 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
              */
         }
 
+        /**
+         * How a file gets downloaded.
+         */
+        public static enum Transport {
+            /**
+             * HTTP if DLNA has found the file, otherwise FTP.
+             */
+            Auto,
+            /**
+             * HTTP, from the DLNA server.
+             */
+            Http,
+            /**
+             * FTP, resuming with REST.
+             */
+            Ftp
+        }
+
+    }
+
+    /**
+     * Downloads the files from one PVR, one after another, until there are
+     * none left (or just one, if auto download is off).
+     */
+    private class Worker implements Runnable {
+
+        private final PVRFolder device;
+        private final Thread thread;
+        private volatile QueueItem current;
+
+        Worker(PVRFolder device) {
+            this.device = device;
+            this.thread = new Thread(this, device != null ? "Download " + device.getRemoteFilename() : "Download");
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            QueueItem item = current;
+            if (item != null) {
+                item.stop();
+            }
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running.get()) {
+                    QueueItem next;
+
+                    synchronized (queue) {
+                        next = getNextItem(device);
+                        if (next == null) {
+                            // Forget this worker while holding the lock, so
+                            // anything queued from now on gets a new one.
+                            workers.remove(device);
+                            return;
+                        }
+                    }
+
+                    current = next;
+                    try {
+                        next.download();
+                    } catch (IOException ex) {
+                        log.error("Unexpected issue with download: {}", ex.getMessage(), ex);
+                        next.setState(QueueItem.State.Error);
+                    }
+
+                    current = null;
+                    notifyListDataListeners();
+                    notifyStatusListeners();
+
+                    if (!prefs.getBoolean(Main.KEY_AUTO_DOWNLOAD, false)) {
+                        log.debug("Stopping downloads from {}: Auto download off", thread.getName());
+                        return;
+                    }
+                }
+            } finally {
+                workerDone(this);
+            }
+        }
     }
 
     private static class MoveManager implements Runnable {
@@ -1247,11 +1488,13 @@ public final class DownloadManager implements ListModel<DownloadManager.QueueIte
 
         public final String localPath;
         public final String remotePath;
+        public final String device;
         public final int priority;
 
-        public SavedItem(String localPath, String remotePath, int index) {
+        public SavedItem(String localPath, String remotePath, String device, int index) {
             this.localPath = localPath;
             this.remotePath = remotePath;
+            this.device = device;
             this.priority = index;
         }
 
@@ -23,24 +23,31 @@
  */
 package com.moosemorals.mediabrowser;
 
-import static com.moosemorals.mediabrowser.PVR.DEFAULT_TIMEZONE;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.net.PrintCommandListener;
 import org.apache.commons.net.ftp.FTPClient;
-import org.apache.commons.net.ftp.FTPClientConfig;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPListParseEngine;
 import org.apache.commons.net.ftp.FTPReply;
-import org.joda.time.DateTime;
-import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,37 +57,115 @@ import org.slf4j.LoggerFactory;
  */
 public class FtpScanner implements Runnable {
 
+    /**
+     * Number of FTP connections to use for scanning if not otherwise set.
+     */
+    public static final int DEFAULT_SCAN_CONNECTIONS = 3;
+
+    /**
+     * Number of FTP connections to use for fetching HMT files if not otherwise
+     * set.
+     */
+    public static final int DEFAULT_HMT_CONNECTIONS = 2;
+
+    /**
+     * How many .ts files can be waiting for their HMT to be fetched before
+     * listing blocks.
+     */
+    private static final int HMT_QUEUE_SIZE = 64;
+
+    /**
+     * How long to wait for workers to finish once a scan has been stopped,
+     * in milliseconds.
+     */
+    private static final long WORKER_STOP_TIMEOUT = 10000;
+
+    /**
+     * How long a folder's LIST timestamp has to be in the past before it's
+     * trusted as a fingerprint, in milliseconds.
+     */
+    private static final long LIST_SETTLE_TIME = 5 * 60 * 1000;
+
+    /**
+     * How many listing entries to parse at a time.
+     */
+    private static final int LIST_PAGE_SIZE = 50;
+
     private static final String FTP_ROOT = "/mnt/hd2/My Video";
 
     private final Logger log = LoggerFactory.getLogger(FtpScanner.class);
-    private final FTPClient ftp;
+    private final FtpSessionManager sessions;
     private final AtomicBoolean ftpRunning;
-    private final boolean debugFTP = false;
     private final PVR pvr;
-    private final String remoteHostname;
+    private final PVRDevice device;
+    private final int scanConnections;
+    private final int hmtConnections;
+    private final LinkedList<ScanJob> scanQueue;
+    private final BlockingQueue<PendingHmt> hmtQueue;
+    private final HMTCache hmtCache;
+    private final AtomicBoolean listingDone;
+    private final AtomicInteger hmtWorkersRunning;
+    private final AtomicInteger scanTotal;
+    private final AtomicInteger scanChecked;
+    private final ScanMetrics metrics;
+    private final Set<PVRFolder> wantedFolders;
 
     private Thread ftpThread = null;
+    private int scanPending = 0;
+    private volatile boolean fullScan = true;
 
-    FtpScanner(PVR pvr, String remoteHostname) {
+    /**
+     * Create a scanner for the PVR at remoteHostname.
+     *
+     * @param pvr PVR to add found folders and files to
+     * @param device PVRDevice the scanner belongs to
+     * @param remoteHostname String hostname (or IP address) of the PVR
+     * @param scanConnections int how many FTP connections to use in parallel
+     * while listing folders. Values less than one are treated as one.
+     * @param hmtConnections int how many FTP connections to use in parallel
+     * while fetching HMT files. Values less than one are treated as one.
+     * @param hmtCache HMTCache to check before fetching HMT files.
+     */
+    FtpScanner(PVR pvr, PVRDevice device, String remoteHostname, int scanConnections, int hmtConnections, HMTCache hmtCache) {
         this.pvr = pvr;
-        this.remoteHostname = remoteHostname;
-
-        FTPClientConfig config = new FTPClientConfig();
-        config.setServerTimeZoneId(DEFAULT_TIMEZONE.getID());
-        config.setServerLanguageCode("EN");
+        this.device = device;
+        this.hmtCache = hmtCache;
+        this.scanConnections = Math.max(1, scanConnections);
+        this.hmtConnections = Math.max(1, hmtConnections);
+        this.scanQueue = new LinkedList<>();
+        this.hmtQueue = new LinkedBlockingQueue<>(HMT_QUEUE_SIZE);
+        this.listingDone = new AtomicBoolean(false);
+        this.hmtWorkersRunning = new AtomicInteger();
+        this.scanTotal = new AtomicInteger();
+        this.scanChecked = new AtomicInteger();
+        this.metrics = new ScanMetrics();
+        this.wantedFolders = new HashSet<>();
 
-        ftp = new FTPClient();
-        ftp.configure(config);
-        if (debugFTP) {
-            ftp.addProtocolCommandListener(new PrintCommandListener(new PrintWriter(System.out), true));
-        }
+        // Two more than the scan needs, so downloads and user actions don't
+        // have to wait for a scan to finish.
+        sessions = new FtpSessionManager(remoteHostname, this.scanConnections + this.hmtConnections + 2);
         ftpRunning = new AtomicBoolean(false);
 
     }
 
-    void start() {
+    /**
+     * Start a scan, if one isn't already running.
+     *
+     * <p>
+     * An incremental scan only lists folders that have changed since they were
+     * last listed, skipping any folder (and everything under it) where the
+     * timestamp and size reported by its parent are the same as last time.
+     * The PVR runs a full scan every so often to catch changes that don't
+     * show up in the parent listing.</p>
+     *
+     * @param full boolean true to list every folder, false for an incremental
+     * scan.
+     */
+    void start(boolean full) {
         if (ftpRunning.compareAndSet(false, true)) {
-            ftpThread = new Thread(this, "FTP");
+            fullScan = full;
+            log.debug("Starting {} scan", fullScan ? "full" : "incremental");
+            ftpThread = new Thread(this, "FTP " + device.getName());
             ftpThread.start();
             notifyScanListeners(DeviceListener.ScanType.ftp, true);
         }
@@ -112,6 +197,75 @@ public class FtpScanner implements Runnable {
         }
     }
 
+    /**
+     * Cheap check for changes since the last scan. Lists the top level folder
+     * only, and compares it with the tree: new or missing entries, or a
+     * folder whose fingerprint has changed, count as a change. An incremental
+     * scan will then only list the top level and the folders that changed.
+     *
+     * <p>
+     * Changes more than one level down don't show up here, they're left for
+     * the next full scan.</p>
+     *
+     * @return boolean true if something has changed, false if nothing has
+     * changed, or a scan is already running.
+     * @throws IOException
+     */
+    boolean hasChanged() throws IOException {
+        if (ftpRunning.get()) {
+            return false;
+        }
+
+        PVRFolder root = device.getRoot();
+        FtpSessionManager.Session session = sessions.lease(FtpSessionManager.Priority.Scan);
+        try {
+            FTPClient client = session.getClient();
+            if (!client.changeWorkingDirectory(FTP_ROOT)) {
+                throw new IOException("Can't change FTP directory to " + FTP_ROOT);
+            }
+
+            FTPListParseEngine listing = listCurrentDirectory(session);
+            int entries = 0;
+            while (listing.hasNext()) {
+                for (FTPFile f : listing.getNext(LIST_PAGE_SIZE)) {
+                    if (f == null || isCurrentOrParent(f)) {
+                        continue;
+                    }
+                    if (f.isDirectory()) {
+                        entries += 1;
+                        PVRItem child = root.getChild(f.getName());
+                        if (!(child instanceof PVRFolder) || !((PVRFolder) child).isFtpUnchanged(fingerprint(f))) {
+                            log.debug("Change detected in {}", f.getName());
+                            return true;
+                        }
+                    } else if (f.isFile() && f.getName().endsWith(".ts")) {
+                        entries += 1;
+                        if (root.getChild(f.getName()) == null) {
+                            log.debug("New file {}", f.getName());
+                            return true;
+                        }
+                    }
+                }
+            }
+            // Catches deleted entries
+            return entries != root.getFtpChildCount();
+        } catch (IOException ex) {
+            session.checkProblem(ex);
+            throw ex;
+        } finally {
+            sessions.release(session);
+        }
+    }
+
+    /**
+     * Stop any running scan, and disconnect from the PVR. The scanner can't be
+     * used after this.
+     */
+    void close() {
+        stop();
+        sessions.close();
+    }
+
     /**
      * Unset the locked flag.
      *
@@ -130,71 +284,129 @@ public class FtpScanner implements Runnable {
      * @throws IOException
      */
     public void unlockFile(List<PVRFile> targets) throws IOException {
-        synchronized (ftp) {
-            boolean connected = connect();
-            for (PVRFile target : targets) {
-
-                if (!target.isLocked()) {
-                    continue;
-                }
-
-                if (!target.getRemoteFilename().endsWith(".ts")) {
-                    throw new IllegalArgumentException("Target must be a .ts file: " + target.getRemoteFilename());
-                }
-
-                if (!ftp.changeWorkingDirectory(FTP_ROOT + target.getParent().getRemotePath())) {
-                    throw new IOException("Can't change FTP directory to " + FTP_ROOT + target.getParent().getRemotePath());
-                }
-                HMTFile hmt = getHMTForTs(target);
-                if (!hmt.isLocked()) {
-                    log.info("Unlock failed: {} is already unlocked", target.getRemoteFilename());
-                    return;
-                }
+        // Group by folder, so each folder is only visited and listed once
+        Map<PVRFolder, List<PVRFile>> byFolder = new LinkedHashMap<>();
+        for (PVRFile target : targets) {
+            if (!target.isLocked()) {
+                continue;
+            }
+            if (!target.getRemoteFilename().endsWith(".ts")) {
+                throw new IllegalArgumentException("Target must be a .ts file: " + target.getRemoteFilename());
+            }
+            List<PVRFile> group = byFolder.get(target.getParent());
+            if (group == null) {
+                group = new ArrayList<>();
+                byFolder.put(target.getParent(), group);
+            }
+            group.add(target);
+        }
 
-                hmt.clearLock();
+        if (byFolder.isEmpty()) {
+            return;
+        }
 
-                String uploadFilename = target.getRemoteFilename().replaceAll("\\.ts$", ".hmt");
-                log.info("Uploading unlocked hmt file to {}{}", target.getParent().getRemotePath(), uploadFilename);
+        FtpSessionManager.Session session = sessions.lease();
+        try {
+            FTPClient ftp = session.getClient();
+            for (Map.Entry<PVRFolder, List<PVRFile>> e : byFolder.entrySet()) {
+                unlockInFolder(ftp, e.getKey(), e.getValue());
+            }
+        } catch (IOException ex) {
+            session.checkProblem(ex);
+            throw ex;
+        } finally {
+            sessions.release(session);
+        }
+    }
 
-                if (!ftp.storeFile(uploadFilename, new ByteArrayInputStream(hmt.getBytes()))) {
-                    throw new IOException("Can't upload unlocked hmt to " + uploadFilename);
-                }
+    /**
+     * Unlock a group of files that share a folder. The folder is listed once,
+     * all the HMTs are uploaded, and then the renames are done against the
+     * listing. Details are updated from the HMTs we already have in memory.
+     *
+     * @param ftp FTPClient to use, must already be connected.
+     * @param folder PVRFolder holding all the targets
+     * @param targets List of PVRFiles to unlock
+     * @throws IOException
+     */
+    private void unlockInFolder(FTPClient ftp, PVRFolder folder, List<PVRFile> targets) throws IOException {
+        if (!ftp.changeWorkingDirectory(FTP_ROOT + folder.getRemotePath())) {
+            throw new IOException("Can't change FTP directory to " + FTP_ROOT + folder.getRemotePath());
+        }
 
-                renameInPlace(target);
-                updateFromHMT(target);
+        Map<PVRFile, HMTFile> uploaded = new LinkedHashMap<>();
+        for (PVRFile target : targets) {
+            String hmtFilename = hmtFilename(target);
+            HMTFile hmt = downloadHMT(ftp, hmtFilename);
+            if (!hmt.isLocked()) {
+                log.info("Unlock skipped: {} is already unlocked", target.getRemoteFilename());
+                new HMTCache.Entry(target.getSize(), -1, hmt).applyTo(target);
                 pvr.updateItem(target);
+                continue;
             }
 
-            if (connected) {
-                disconnect();
+            hmt.clearLock();
+
+            log.info("Uploading unlocked hmt file to {}{}", folder.getRemotePath(), hmtFilename);
+            if (!ftp.storeFile(hmtFilename, new ByteArrayInputStream(hmt.getBytes()))) {
+                throw new IOException("Can't upload unlocked hmt to " + hmtFilename);
             }
+            uploaded.put(target, hmt);
+        }
 
+        if (uploaded.isEmpty()) {
+            return;
         }
 
+        FTPFile[] listing = ftp.listFiles();
+        for (Map.Entry<PVRFile, HMTFile> e : uploaded.entrySet()) {
+            PVRFile target = e.getKey();
+            String oldKey = folder.getRemotePath() + target.getRemoteFilename();
+            FTPFile ts = renameInPlace(ftp, target, listing);
+
+            HMTCache.Entry entry;
+            if (ts != null) {
+                // Keep the cache in step with the new name, so the next scan
+                // doesn't have to fetch it again.
+                long timestamp = ts.getTimestamp() != null ? ts.getTimestamp().getTimeInMillis() : -1;
+                hmtCache.remove(oldKey);
+                entry = hmtCache.put(folder.getRemotePath() + target.getRemoteFilename(), ts.getSize(), timestamp, e.getValue());
+            } else {
+                entry = new HMTCache.Entry(target.getSize(), -1, e.getValue());
+            }
+            entry.applyTo(target);
+            pvr.updateItem(target);
+        }
     }
 
     /**
      * Triggers a DLNA server rescan (on the PVR). Skips a lot of checks on the
      * assumption that its called from unlock only.
      *
+     * @param ftp FTPClient to use, in the targets folder
      * @param target
+     * @param listing FTPFile[] listing of the targets folder, from before any
+     * renames
+     * @return FTPFile the listing entry for the .ts file, or null if it wasn't
+     * in the listing.
      */
-    private void renameInPlace(PVRFile target) throws IOException {
+    private FTPFile renameInPlace(FTPClient ftp, PVRFile target, FTPFile[] listing) throws IOException {
 
         String basename = FilenameUtils.getBaseName(target.getRemoteFilename());
+        String newBasename;
+        if (basename.endsWith("-")) {
+            newBasename = basename.substring(0, basename.length() - 1);
+        } else {
+            newBasename = basename + "-";
+        }
 
-        for (FTPFile f : ftp.listFiles()) {
+        FTPFile ts = null;
+        for (FTPFile f : listing) {
             String oldName = f.getName();
             if (basename.equals(FilenameUtils.getBaseName(oldName))) {
 
                 String extension = FilenameUtils.getExtension(oldName);
-
-                String newName;
-                if (basename.endsWith("-")) {
-                    newName = basename.substring(0, basename.length() - 1) + extension;
-                } else {
-                    newName = basename + "-." + extension;
-                }
+                String newName = newBasename + "." + extension;
 
                 log.debug("Moving {} to {} ", oldName, newName);
 
@@ -203,163 +415,673 @@ public class FtpScanner implements Runnable {
                 }
 
                 if (extension.equals("ts")) {
-                    target.setRemoteFilename(newName);
+                    target.getParent().renameChild(target, newName);
+                    ts = f;
                 }
+            }
+        }
+        return ts;
+    }
+
+    /**
+     * Open a .ts file for reading, starting at the given offset. The session
+     * is held until the stream is closed, so make sure it gets closed.
+     *
+     * @param target PVRFile to read
+     * @param offset long number of bytes to skip (using REST), zero to read
+     * from the start.
+     * @return InputStream of the file.
+     * @throws IOException
+     */
+    public InputStream retrieveFile(PVRFile target, long offset) throws IOException {
+        FtpSessionManager.Session session = sessions.lease();
+        try {
+            FTPClient ftp = session.getClient();
+            changeToParent(ftp, target);
 
+            ftp.setRestartOffset(offset);
+            InputStream in = ftp.retrieveFileStream(target.getRemoteFilename());
+            if (in == null) {
+                throw new IOException("Can't download " + target.getRemoteFilename() + ": " + ftp.getReplyString());
             }
+            return new FtpDownloadStream(session, in);
+        } catch (IOException ex) {
+            session.checkProblem(ex);
+            sessions.release(session);
+            throw ex;
         }
+    }
+
+    /**
+     * Run a batch of file operations on a single session. Each folder that
+     * files are moved out of is changed into and listed once, and all the
+     * renames for that folder are sent one after another.
+     *
+     * <p>
+     * Stops at the first operation that fails. Operations that worked are
+     * added to done as they finish, so the caller can update the tree even if
+     * this throws.</p>
+     *
+     * @param batch RemoteBatch to run
+     * @param done List that completed operations are added to.
+     * @throws IOException
+     */
+    void apply(RemoteBatch batch, List<RemoteBatch.Operation> done) throws IOException {
+        FtpSessionManager.Session session = sessions.lease();
+        try {
+            FTPClient ftp = session.getClient();
+
+            for (RemoteBatch.Operation op : batch.getOperations(RemoteBatch.Operation.Type.CreateFolder)) {
+                String path = FTP_ROOT + op.folder.getRemotePath() + op.name;
+                log.debug("Making folder {}", path);
+                if (!ftp.makeDirectory(path)) {
+                    throw new IOException("Can't make folder " + path + ": " + ftp.getReplyString());
+                }
+                done.add(op);
+            }
 
+            for (Map.Entry<PVRFolder, List<RemoteBatch.Operation>> e : batch.getMovesBySource().entrySet()) {
+                PVRFolder source = e.getKey();
+                if (!ftp.changeWorkingDirectory(FTP_ROOT + source.getRemotePath())) {
+                    throw new IOException("Can't change FTP directory to " + FTP_ROOT + source.getRemotePath());
+                }
+                FTPFile[] listing = ftp.listFiles();
+                for (RemoteBatch.Operation op : e.getValue()) {
+                    moveItem(ftp, op, listing);
+                    done.add(op);
+                }
+            }
+
+            for (RemoteBatch.Operation op : batch.getOperations(RemoteBatch.Operation.Type.DeleteFolder)) {
+                String path = FTP_ROOT + op.item.getRemotePath();
+                log.debug("Deleting folder {}", path);
+                if (!ftp.removeDirectory(path)) {
+                    throw new IOException("Can't delete folder " + path + ": " + ftp.getReplyString());
+                }
+                done.add(op);
+            }
+        } catch (IOException ex) {
+            session.checkProblem(ex);
+            throw ex;
+        } finally {
+            sessions.release(session);
+        }
     }
 
-    public void moveToFolder(List<PVRFile> files, PVRFolder destination) throws IOException {
-        synchronized (ftp) {
-            boolean connected = connect();
+    /**
+     * Move (or rename) one item. Folders are moved as they are, files are moved
+     * along with every other file in the listing with the same basename.
+     *
+     * @param ftp FTPClient to use, in the items folder
+     * @param op Operation to do
+     * @param listing FTPFile[] listing of the items folder
+     * @throws IOException
+     */
+    private void moveItem(FTPClient ftp, RemoteBatch.Operation op, FTPFile[] listing) throws IOException {
+        String destination = FTP_ROOT + op.folder.getRemotePath();
+
+        if (op.item.isFolder()) {
+            log.debug("Moving {} to {}{}", op.item.getRemoteFilename(), destination, op.name);
+            if (!ftp.rename(op.item.getRemoteFilename(), destination + op.name)) {
+                throw new IOException("Can't move " + op.item.getRemotePath() + ": " + ftp.getReplyString());
+            }
+            return;
+        }
+
+        String basename = FilenameUtils.getBaseName(op.item.getRemoteFilename());
+        String newBasename = FilenameUtils.getBaseName(op.name);
+        boolean found = false;
+        for (FTPFile f : listing) {
+            String oldName = f.getName();
+            if (basename.equals(FilenameUtils.getBaseName(oldName))) {
+                String newName = newBasename + "." + FilenameUtils.getExtension(oldName);
 
-            for (PVRFile target : files) {
-                if (!ftp.changeWorkingDirectory(FTP_ROOT + target.getParent().getRemotePath())) {
-                    throw new IOException("Can't change FTP directory to " + FTP_ROOT + target.getParent().getRemotePath());
+                log.debug("Moving {} to {}{}", oldName, destination, newName);
+                if (!ftp.rename(oldName, destination + newName)) {
+                    throw new IOException("Can't move " + oldName + ": " + ftp.getReplyString());
                 }
+                if (oldName.equals(op.item.getRemoteFilename())) {
+                    found = true;
+                }
+            }
+        }
 
-                String basename = FilenameUtils.getBaseName(target.getRemoteFilename());
+        if (!found) {
+            throw new IOException("Can't find " + op.item.getRemotePath() + " to move it");
+        }
+        hmtCache.rename(op.item.getRemotePath(), op.folder.getRemotePath() + op.name);
+    }
 
-                for (FTPFile f : ftp.listFiles()) {
-                    String oldName = f.getName();
-                    if (basename.equals(FilenameUtils.getBaseName(oldName))) {
+    /**
+     * Walk the PVR folder tree, adding folders and files as they are found.
+     *
+     * <p>
+     * The scan runs as two stages. The tree is walked breadth first, with the
+     * queue of folders waiting to be listed shared between scanConnections
+     * worker threads, each with its own FTP connection. Files are added to the
+     * tree as soon as they are listed, and then queued to have their HMT
+     * fetched by a further hmtConnections worker threads, so titles (and so
+     * on) fill in as the HMT files arrive. HMT files are only fetched if the
+     * .ts file isn't in the HMT cache, or has changed since it was cached.
+     * Returns once every folder has been listed and every HMT fetched (or the
+     * scan has been stopped).</p>
+     *
+     * @throws IOException if any of the workers had a problem.
+     */
+    private void scrapeFTP() throws IOException {
+        scanTotal.set(0);
+        scanChecked.set(0);
+        metrics.reset();
+        synchronized (scanQueue) {
+            scanQueue.clear();
+            scanPending = 0;
+        }
+        hmtQueue.clear();
+        listingDone.set(false);
+        hmtWorkersRunning.set(hmtConnections);
+        hmtCache.startScan();
+        queueFolder(device.getRoot(), null);
 
-                        String newName = FTP_ROOT + destination.getRemotePath() + oldName;
+        List<FtpWorker> listers = new ArrayList<>();
+        for (int i = 0; i < scanConnections; i += 1) {
+            listers.add(new ScanWorker("FTP-" + (i + 1)));
+        }
+        List<FtpWorker> fetchers = new ArrayList<>();
+        for (int i = 0; i < hmtConnections; i += 1) {
+            fetchers.add(new HmtWorker("FTP-HMT-" + (i + 1)));
+        }
 
-                        log.debug("Moving {} to {} ", oldName, newName);
+        List<FtpWorker> workers = new ArrayList<>(listers);
+        workers.addAll(fetchers);
+        for (FtpWorker worker : workers) {
+            worker.start();
+        }
 
-                        if (!ftp.rename(oldName, newName)) {
-                            throw new IOException("Can't rename " + target.getRemoteFilename());
-                        }
+        IOException problem = null;
+        try {
+            for (FtpWorker worker : listers) {
+                worker.join();
+            }
+            listingDone.set(true);
+            for (FtpWorker worker : fetchers) {
+                worker.join();
+            }
+        } catch (InterruptedException ex) {
+            log.info("Interrupted waiting for scan, stopping workers");
+            for (FtpWorker worker : workers) {
+                worker.interrupt();
+            }
+            joinWorkers(workers);
+            Thread.currentThread().interrupt();
+        }
 
-                        if (FilenameUtils.getExtension(oldName).equals("ts")) {
-                            target.setRemoteFilename(newName);
-                        }
-                    }
+        for (FtpWorker worker : workers) {
+            if (problem == null) {
+                problem = worker.getProblem();
+            }
+        }
+
+        log.info("FTP {} scan finished: {}", fullScan ? "full" : "incremental", metrics);
+
+        // Files under skipped folders aren't looked up in the cache, so only
+        // a full scan can tell which entries have gone.
+        hmtCache.finishScan(fullScan && problem == null && !Thread.currentThread().isInterrupted());
+
+        if (problem != null) {
+            throw problem;
+        }
+    }
+
+    /**
+     * Wait for interrupted workers to stop, so that a new scan can't start
+     * while they are still taking from the queues and adding to the tree.
+     * Gives up after {@link #WORKER_STOP_TIMEOUT}, since a worker can be
+     * stuck in a read that doesn't notice the interrupt.
+     *
+     * @param workers List of FtpWorkers that have been interrupted
+     */
+    private void joinWorkers(List<FtpWorker> workers) {
+        long deadline = System.currentTimeMillis() + WORKER_STOP_TIMEOUT;
+        for (FtpWorker worker : workers) {
+            long wait = deadline - System.currentTimeMillis();
+            try {
+                if (wait > 0) {
+                    worker.join(wait);
                 }
+            } catch (InterruptedException ex) {
+                // Already stopping, keep waiting for the rest
+            }
+            if (worker.isAlive()) {
+                log.warn("{} didn't stop within {}ms", worker.getName(), WORKER_STOP_TIMEOUT);
+            }
+        }
+    }
 
-                pvr.updateItem(target);
+    /**
+     * Tell the scanner which folders the user is looking at (expanded or
+     * visible in the tree). Those folders are moved to the front of the scan
+     * queue, and will go to the front if they are queued later in the scan.
+     *
+     * @param folders Collection of PVRFolders the user can see.
+     */
+    public void setWantedFolders(Collection<PVRFolder> folders) {
+        synchronized (scanQueue) {
+            wantedFolders.clear();
+            wantedFolders.addAll(folders);
+
+            // Stable, so wanted folders keep their breadth first order
+            List<ScanJob> wanted = new ArrayList<>();
+            for (Iterator<ScanJob> it = scanQueue.iterator(); it.hasNext();) {
+                ScanJob job = it.next();
+                if (wantedFolders.contains(job.folder)) {
+                    wanted.add(job);
+                    it.remove();
+                }
             }
+            if (!wanted.isEmpty()) {
+                log.debug("Moving {} wanted folders to the front of the scan queue", wanted.size());
+                scanQueue.addAll(0, wanted);
+            }
+        }
+    }
 
-            if (connected) {
-                disconnect();
+    /**
+     * Add a folder to the end of the queue of folders to be listed, or to the
+     * front if the user is looking at it.
+     *
+     * @param folder PVRFolder to list
+     * @param fingerprint String fingerprint to record for the folder once its
+     * been listed. May be null.
+     */
+    private void queueFolder(PVRFolder folder, String fingerprint) {
+        synchronized (scanQueue) {
+            if (wantedFolders.contains(folder)) {
+                scanQueue.addFirst(new ScanJob(folder, fingerprint));
+            } else {
+                scanQueue.add(new ScanJob(folder, fingerprint));
             }
+            scanPending += 1;
+            scanQueue.notifyAll();
         }
     }
 
     /**
-     * Connect to the ftp server.
+     * Get the next folder to list, waiting if the queue is empty but other
+     * workers are still listing (and so may add more folders).
      *
-     * @return boolean true if we needed to connect, false for already
-     * connected.
-     * @throws IOException
+     * @return ScanJob next folder, or null if the scan is finished.
+     * @throws InterruptedException
      */
-    private boolean connect() throws IOException {
-        if (!ftp.isConnected()) {
-            log.info("Connecting to FTP");
-            ftp.connect(remoteHostname);
-            int reply = ftp.getReplyCode();
-            if (!FTPReply.isPositiveCompletion(reply)) {
-                ftp.disconnect();
-                throw new IOException("FTP server refused connect");
+    private ScanJob nextFolder() throws InterruptedException {
+        synchronized (scanQueue) {
+            while (scanQueue.isEmpty() && scanPending > 0) {
+                scanQueue.wait();
             }
-            if (!ftp.login("humaxftp", "0000")) {
-                throw new IOException("Can't login to FTP");
+            if (scanQueue.isEmpty()) {
+                return null;
             }
-            if (!ftp.setFileType(FTPClient.BINARY_FILE_TYPE)) {
-                throw new IOException("Can't set binary transfer");
+            return scanQueue.removeFirst();
+        }
+    }
+
+    /**
+     * Mark a folder as listed. Wakes up any workers waiting on an empty queue
+     * so they can check if the scan is finished.
+     */
+    private void folderDone() {
+        synchronized (scanQueue) {
+            scanPending -= 1;
+            scanQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Check if the server supports machine readable listings (MLSD). Should be
+     * called once per connection, after login.
+     *
+     * @param client FTPClient to check, must already be connected.
+     * @return ListingStrategy to use for this connection.
+     */
+    private ListingStrategy probeListing(FTPClient client) {
+        try {
+            if (client.hasFeature("MLST")) {
+                return ListingStrategy.MLSD;
             }
-            return true;
-        } else {
-            return false;
+        } catch (IOException ex) {
+            log.debug("Can't check FTP features: {}", ex.getMessage());
         }
+        return ListingStrategy.LIST;
     }
 
-    private void disconnect() throws IOException {
-        if (ftp.isConnected()) {
-            ftp.disconnect();
-            log.info("Disconnected from FTP");
+    /**
+     * Start listing the current directory.
+     *
+     * <p>
+     * MLSD gives exact sizes and UTC timestamps, and is simpler to parse, so
+     * its used if the server supports it. If an MLSD listing fails then the
+     * connection falls back to LIST.</p>
+     *
+     * <p>
+     * Entries are parsed as they are asked for (see
+     * {@link FTPListParseEngine#getNext(int)}), rather than all at once, so
+     * very large folders can be handled a page at a time.</p>
+     *
+     * @param session Session to list with. The listing strategy is checked
+     * the first time each session is used.
+     * @return FTPListParseEngine listing. May include the current and parent
+     * directory, see {@link #isCurrentOrParent(FTPFile)}.
+     * @throws IOException
+     */
+    private FTPListParseEngine listCurrentDirectory(FtpSessionManager.Session session) throws IOException {
+        FTPClient client = session.getClient();
+        if (session.getListingStrategy() == null) {
+            session.setListingStrategy(probeListing(client));
+            log.debug("{} listing with {}", Thread.currentThread().getName(), session.getListingStrategy());
+        }
+        if (session.getListingStrategy() == ListingStrategy.MLSD) {
+            FTPListParseEngine engine = client.initiateMListParsing();
+            if (FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                metrics.listedWithMlsd.incrementAndGet();
+                return engine;
+            }
+            log.warn("MLSD failed ({}), falling back to LIST on {}", client.getReplyString(), Thread.currentThread().getName());
+            session.setListingStrategy(ListingStrategy.LIST);
         }
+        metrics.listedWithList.incrementAndGet();
+        return client.initiateListParsing();
     }
 
-    private void scrapeFTP() throws IOException {
-        synchronized (ftp) {
-            connect();
-            List<PVRFolder> queue = new LinkedList<>();
-            queue.add((PVRFolder) pvr.getRoot());
-
-            int total = 0;
-            int checked = 0;
-
-            while (!queue.isEmpty() && !ftpThread.isInterrupted()) {
-                PVRFolder directory = queue.remove(0);
-                if (!ftp.changeWorkingDirectory(FTP_ROOT + directory.getRemotePath())) {
-                    throw new IOException("Can't change FTP directory to " + FTP_ROOT + directory.getRemotePath());
-                }
+    /**
+     * Check if a listing entry is for the current or parent directory. LIST
+     * calls them '.' and '..', MLSD names them after their path, so check the
+     * type fact.
+     *
+     * @param f FTPFile to check
+     * @return boolean true if the entry should be skipped.
+     */
+    private boolean isCurrentOrParent(FTPFile f) {
+        if (f.getName().equals(".") || f.getName().equals("..")) {
+            return true;
+        }
+        String raw = f.getRawListing() != null ? f.getRawListing().toLowerCase() : "";
+        return raw.contains("type=cdir;") || raw.contains("type=pdir;");
+    }
 
-                FTPFile[] fileList = ftp.listFiles();
-                total += fileList.length;
-                for (FTPFile f : fileList) {
-                    if (f.getName().equals(".") || f.getName().equals("..")) {
-                        // skip entries for this directory and parent directory
-                        total -= 1;
-                        continue;
-                    }
-                    if (f.isDirectory()) {
-                        PVRFolder next = pvr.addFolder(directory, f.getName());
-                        next.setFtpScanned(true);
-                        pvr.updateItem(next);
-                        queue.add(next);
-                    } else if (f.isFile() && f.getName().endsWith(".ts")) {
-                        PVRFile file = pvr.addFile(directory, f.getName());
-                        file.setSize(f.getSize());
-                        updateFromHMT(file);
-                        pvr.updateItem(file);
-                    }
-                    checked += 1;
-                    notifyScanListeners(DeviceListener.ScanType.ftp, total, checked);
+    /**
+     * List a single folder, adding any child folders to the scan queue.
+     *
+     * <p>
+     * During an incremental scan, child folders whose fingerprint (and number
+     * of children) hasn't changed since they were last listed aren't queued.
+     * Instead, everything under them is marked as scanned, so it doesn't get
+     * removed as stale.</p>
+     *
+     * @param worker ScanWorker doing the listing. Its client must already be
+     * connected.
+     * @param directory PVRFolder to list
+     * @return int number of folders and .ts files found
+     * @throws IOException
+     * @throws InterruptedException if interrupted waiting for space in the HMT
+     * queue
+     */
+    private int scanFolder(ScanWorker worker, PVRFolder directory) throws IOException, InterruptedException {
+        FTPClient client = worker.session.getClient();
+        if (!client.changeWorkingDirectory(FTP_ROOT + directory.getRemotePath())) {
+            throw new IOException("Can't change FTP directory to " + FTP_ROOT + directory.getRemotePath());
+        }
+
+        FTPListParseEngine listing = listCurrentDirectory(worker.session);
+        int entries = 0;
+        while (listing.hasNext()) {
+            FTPFile[] page = listing.getNext(LIST_PAGE_SIZE);
+            scanTotal.addAndGet(page.length);
+            for (FTPFile f : page) {
+                if (f == null || isCurrentOrParent(f)) {
+                    // skip entries we can't parse, and entries for this
+                    // directory and parent directory
+                    scanTotal.decrementAndGet();
+                    continue;
                 }
+                entries += scanEntry(directory, f);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Deal with a single entry from a folder listing. Folders are queued for
+     * listing (or skipped, if unchanged), files are added to the tree and
+     * queued for their HMT.
+     *
+     * @param directory PVRFolder being listed
+     * @param f FTPFile listing entry
+     * @return int 1 if the entry was a folder or .ts file, 0 otherwise.
+     * @throws IOException
+     * @throws InterruptedException if interrupted waiting for space in the HMT
+     * queue
+     */
+    private int scanEntry(PVRFolder directory, FTPFile f) throws IOException, InterruptedException {
+        int entries = 0;
+        if (f.isDirectory()) {
+            entries = 1;
+            PVRFolder next = pvr.addFolder(directory, f.getName());
+            next.setFtpScanned(true);
+            String fingerprint = fingerprint(f);
+            if (!fullScan && next.isFtpUnchanged(fingerprint)) {
+                log.debug("Skipping unchanged folder {}", next.getRemotePath());
+                metrics.foldersSkipped.incrementAndGet();
+                pvr.refreshSubtree(next);
+            } else {
+                pvr.updateItem(next);
+                queueFolder(next, fingerprint);
+            }
+        } else if (f.isFile() && f.getName().endsWith(".ts")) {
+            entries = 1;
+            PVRFile file = pvr.addFile(directory, f.getName());
+            file.setSize(f.getSize());
+            device.reconcileFtp(file);
+
+            PendingHmt pending = new PendingHmt(file, directory.getRemotePath() + f.getName(), f);
+            HMTCache.Entry cached = hmtCache.get(pending.cacheKey, pending.size, pending.timestamp);
+            if (cached != null) {
+                metrics.hmtFromCache.incrementAndGet();
+                cached.applyTo(file);
+                pvr.updateItem(file);
+            } else {
+                pvr.updateItem(file);
+                // Counted as checked once the HMT has been fetched
+                queueHmt(pending);
+                return entries;
+            }
+        }
+        notifyScanListeners(DeviceListener.ScanType.ftp, scanTotal.get(), scanChecked.incrementAndGet());
+        return entries;
+    }
+
+    /**
+     * Build a fingerprint for a folder from its entry in its parents listing.
+     * The PVR updates the timestamp of a folder when files are added, removed
+     * or renamed.
+     *
+     * <p>
+     * MLSD gives the modify time to the second, so that's used as is. LIST
+     * only gives the time to the minute (and the size of a folder never
+     * changes), so a folder that changed in the last few minutes could change
+     * again without the fingerprint changing. Those folders don't get a
+     * fingerprint, so they are listed every time until they settle.</p>
+     *
+     * @param f FTPFile folder entry
+     * @return String fingerprint, or null if the entry can't be trusted
+     */
+    private String fingerprint(FTPFile f) {
+        String modify = getFact(f, "modify");
+        if (modify != null) {
+            return "modify=" + modify;
+        }
+        if (f.getTimestamp() == null) {
+            return null;
+        }
+        long timestamp = f.getTimestamp().getTimeInMillis();
+        if (System.currentTimeMillis() - timestamp < LIST_SETTLE_TIME) {
+            return null;
+        }
+        return timestamp + ":" + f.getSize();
+    }
+
+    /**
+     * Get a fact from an MLSD listing entry (e.g. "type=dir;modify=...;
+     * name").
+     *
+     * @param f FTPFile listing entry
+     * @param name String name of the fact, case doesn't matter
+     * @return String value of the fact, or null if the entry didn't come
+     * from MLSD or doesn't have the fact.
+     */
+    private static String getFact(FTPFile f, String name) {
+        String raw = f.getRawListing();
+        if (raw == null) {
+            return null;
+        }
+        int space = raw.indexOf(' ');
+        String facts = space >= 0 ? raw.substring(0, space) : raw;
+        for (String fact : facts.split(";")) {
+            int equals = fact.indexOf('=');
+            if (equals > 0 && fact.substring(0, equals).equalsIgnoreCase(name)) {
+                return fact.substring(equals + 1);
             }
-            disconnect();
         }
+        return null;
     }
 
-    private void updateFromHMT(PVRFile file) throws IOException {
-        synchronized (ftp) {
-            HMTFile hmt = getHMTForTs(file);
+    /**
+     * Add a file to the queue waiting for HMT files, waiting for space if the
+     * queue is full.
+     *
+     * @param pending PendingHmt to queue
+     * @throws IOException if there's nothing left to fetch HMT files.
+     * @throws InterruptedException
+     */
+    private void queueHmt(PendingHmt pending) throws IOException, InterruptedException {
+        while (!hmtQueue.offer(pending, 250, TimeUnit.MILLISECONDS)) {
+            if (hmtWorkersRunning.get() == 0) {
+                throw new IOException("Can't queue HMT for " + pending.cacheKey + ": No HMT workers running");
+            }
+        }
+    }
 
-            file.setDescription(hmt.getDesc());
-            file.setTitle(hmt.getRecordingTitle());
-            file.setStartTime(new DateTime(hmt.getStartTimestamp() * 1000, PVR.DEFAULT_TIMEZONE));
-            file.setEndTime(new DateTime(hmt.getEndTimestamp() * 1000, PVR.DEFAULT_TIMEZONE));
-            file.setLength(new Duration(hmt.getLength() * 1000));
-            file.setHighDef(hmt.isHighDef());
-            file.setLocked(hmt.isLocked());
-            file.setChannelName(hmt.getChannelName());
-            file.setFtpScanned(true);
+    /**
+     * Get the next file waiting for its HMT, waiting if the queue is empty but
+     * folders are still being listed.
+     *
+     * @return PendingHmt next file, or null if the scan is finished.
+     * @throws InterruptedException
+     */
+    private PendingHmt nextHmt() throws InterruptedException {
+        while (true) {
+            PendingHmt next = hmtQueue.poll(250, TimeUnit.MILLISECONDS);
+            if (next != null) {
+                return next;
+            } else if (listingDone.get() && hmtQueue.isEmpty()) {
+                return null;
+            }
         }
     }
 
-    private HMTFile getHMTForTs(PVRFile file) throws IOException {
-        String target = file.getRemoteFilename().replaceAll("\\.ts$", ".hmt");
+    /**
+     * Fetch the HMT for a queued file, update the file, and cache the result.
+     *
+     * @param client FTPClient to use, must already be connected.
+     * @param pending PendingHmt to fetch.
+     * @param buffer byte[] to read the HMT header into.
+     * @throws IOException
+     */
+    private void updateFromHMT(FTPClient client, PendingHmt pending, byte[] buffer) throws IOException {
+        HMTFile hmt = getHMTHeaderForTs(client, pending.file, buffer);
+        metrics.hmtFetched.incrementAndGet();
+        hmtCache.put(pending.cacheKey, pending.size, pending.timestamp, hmt).applyTo(pending.file);
+    }
+
+    /**
+     * Download a whole HMT file from the current directory.
+     *
+     * @param client FTPClient to use, must already be in the right folder.
+     * @param target String name of the HMT file
+     * @return HMTFile
+     * @throws IOException
+     */
+    private HMTFile downloadHMT(FTPClient client, String target) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
+        if (!client.retrieveFile(target, out)) {
+            throw new IOException("Can't download " + target + ": Unknown reason");
+        }
+        return new HMTFile(out.toByteArray());
+    }
+
+    /**
+     * Fetch just the start of the HMT for a file, stopping the transfer once
+     * the buffer is full. The HMTFile built from this is fine for reading
+     * details, but mustn't be uploaded back to the PVR.
+     *
+     * @param client FTPClient to use, must already be connected.
+     * @param file PVRFile to get the HMT for.
+     * @param buffer byte[] to read into, at least HMTFile.HEADER_LENGTH long.
+     * Reused between calls.
+     * @return HMTFile with the header details.
+     * @throws IOException
+     */
+    private HMTFile getHMTHeaderForTs(FTPClient client, PVRFile file, byte[] buffer) throws IOException {
+        String target = hmtFilename(file);
+
+        changeToParent(client, file);
+
+        InputStream in = client.retrieveFileStream(target);
+        if (in == null) {
+            throw new IOException("Can't download " + target + ": " + client.getReplyString());
+        }
+
+        int read = 0;
+        boolean eof = false;
+        try {
+            while (read < buffer.length) {
+                int count = in.read(buffer, read, buffer.length - read);
+                if (count == -1) {
+                    eof = true;
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        // Closing the data connection early makes most servers reply 426
+        // instead of 226, which is fine. We still need to read the reply to
+        // keep the control connection in step.
+        if (!client.completePendingCommand() && eof) {
+            throw new IOException("Can't download " + target + ": " + client.getReplyString());
+        }
+
+        if (read < HMTFile.HEADER_LENGTH) {
+            throw new IOException("HMT file " + target + " is too short (" + read + " bytes)");
+        }
+        return new HMTFile(buffer, read);
+    }
+
+    private String hmtFilename(PVRFile file) {
+        return file.getRemoteFilename().replaceAll("\\.ts$", ".hmt");
+    }
+
+    private void changeToParent(FTPClient client, PVRFile file) throws IOException {
         String remotePath = FTP_ROOT + file.getParent().getRemotePath();
         if (remotePath.endsWith("/")) {
             remotePath = remotePath.substring(0, remotePath.length() - 1);
         }
-        if (!remotePath.equals(ftp.printWorkingDirectory())) {
-            if (!ftp.changeWorkingDirectory(remotePath)) {
+        if (!remotePath.equals(client.printWorkingDirectory())) {
+            if (!client.changeWorkingDirectory(remotePath)) {
                 throw new IOException("Can't change to directory " + remotePath);
             }
         }
-
-        if (!ftp.retrieveFile(target, out)) {
-            throw new IOException("Can't download " + target + ": Unknown reason");
-        }
-        return new HMTFile(out.toByteArray());
     }
 
     private final Set<DeviceListener> deviceListener = new HashSet<>();
@@ -396,4 +1118,287 @@ public class FtpScanner implements Runnable {
         }
     }
 
+    /**
+     * Base class for scan workers. Each worker leases its own FTP session,
+     * which is held while {@link #work()} is called, and released after.
+     * Workers should call {@link #checkpoint()} between steps so higher
+     * priority work can have the session.
+     */
+    private abstract class FtpWorker extends Thread {
+
+        protected FtpSessionManager.Session session = null;
+        private final FtpSessionManager.Priority priority;
+        private IOException problem = null;
+
+        FtpWorker(String name, FtpSessionManager.Priority priority) {
+            super(name);
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            try {
+                session = sessions.lease(priority);
+                work();
+            } catch (InterruptedIOException ex) {
+                log.info("{} interrupted, stopping", getName());
+            } catch (IOException ex) {
+                log.error("FTP problem in {}: {}", getName(), ex.getMessage(), ex);
+                problem = ex;
+            } catch (InterruptedException ex) {
+                log.info("{} interrupted, stopping", getName());
+            } finally {
+                sessions.release(session);
+                session = null;
+            }
+        }
+
+        /**
+         * Check an exception from the session. If the session is broken, its
+         * replaced with a new one so the caller can retry.
+         *
+         * @param ex IOException thrown while using the session
+         * @throws IOException the original exception if the session isn't
+         * broken, or a new one if we can't reconnect.
+         */
+        protected void reconnectOrThrow(IOException ex) throws IOException {
+            if (!session.checkProblem(ex) || isInterrupted()) {
+                throw ex;
+            }
+            log.warn("{} lost connection: {}", getName(), ex.getMessage());
+            FtpSessionManager.Session broken = session;
+            session = null;
+            session = sessions.replace(broken, priority);
+        }
+
+        /**
+         * Give up the session if higher priority work is waiting for one,
+         * and wait for another.
+         *
+         * @throws IOException if we can't get a new session.
+         */
+        protected void checkpoint() throws IOException {
+            FtpSessionManager.Session current = session;
+            session = null;
+            session = sessions.checkpoint(current, priority);
+        }
+
+        /**
+         * Do the actual work. Called once a session has been leased.
+         *
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        protected abstract void work() throws IOException, InterruptedException;
+
+        IOException getProblem() {
+            return problem;
+        }
+    }
+
+    /**
+     * Lists folders from the shared scan queue until the queue is finished.
+     */
+    private class ScanWorker extends FtpWorker {
+
+        ScanWorker(String name) {
+            super(name, FtpSessionManager.Priority.Scan);
+        }
+
+        @Override
+        protected void work() throws IOException, InterruptedException {
+            ScanJob job;
+            while (!isInterrupted() && (job = nextFolder()) != null) {
+                try {
+                    int entries;
+                    try {
+                        entries = scanFolder(this, job.folder);
+                    } catch (IOException ex) {
+                        reconnectOrThrow(ex);
+                        // Listing is safe to repeat
+                        entries = scanFolder(this, job.folder);
+                    }
+                    job.folder.setFtpFingerprint(job.fingerprint, entries);
+                } finally {
+                    folderDone();
+                }
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Fetches HMT files for files from the HMT queue, and updates the files
+     * from them, until listing has finished and the queue is empty.
+     */
+    private class HmtWorker extends FtpWorker {
+
+        private final byte[] buffer = new byte[HMTFile.HEADER_LENGTH];
+
+        HmtWorker(String name) {
+            super(name, FtpSessionManager.Priority.Metadata);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                hmtWorkersRunning.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected void work() throws IOException, InterruptedException {
+            PendingHmt pending;
+            while (!isInterrupted() && (pending = nextHmt()) != null) {
+                try {
+                    try {
+                        updateFromHMT(session.getClient(), pending, buffer);
+                    } catch (IOException ex) {
+                        reconnectOrThrow(ex);
+                        updateFromHMT(session.getClient(), pending, buffer);
+                    }
+                    pvr.updateItem(pending.file);
+                } catch (IOException ex) {
+                    if (session == null || session.checkProblem(ex)) {
+                        throw ex;
+                    }
+                    // Probably just this file (maybe its still recording), keep going.
+                    log.warn("Can't get HMT for {}: {}", pending.cacheKey, ex.getMessage());
+                }
+                notifyScanListeners(DeviceListener.ScanType.ftp, scanTotal.get(), scanChecked.incrementAndGet());
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Wraps the data connection of a download so that closing it finishes the
+     * transfer and gives the session back.
+     */
+    private class FtpDownloadStream extends FilterInputStream {
+
+        private final FtpSessionManager.Session session;
+        private boolean closed = false;
+
+        FtpDownloadStream(FtpSessionManager.Session session, InputStream in) {
+            super(in);
+            this.session = session;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+                // Servers reply 426 if we stop early, which is fine. We still
+                // need to read it to keep the control connection in step.
+                if (!session.getClient().completePendingCommand()) {
+                    log.debug("Download ended early: {}", session.getClient().getReplyString());
+                }
+            } catch (IOException ex) {
+                session.checkProblem(ex);
+                throw ex;
+            } finally {
+                sessions.release(session);
+            }
+        }
+    }
+
+    /**
+     * A file waiting for its HMT to be fetched, along with the details needed
+     * to cache the result.
+     */
+    private static class PendingHmt {
+
+        final PVRFile file;
+        final String cacheKey;
+        final long size;
+        final long timestamp;
+
+        PendingHmt(PVRFile file, String cacheKey, FTPFile listing) {
+            this.file = file;
+            this.cacheKey = cacheKey;
+            this.size = listing.getSize();
+            this.timestamp = listing.getTimestamp() != null ? listing.getTimestamp().getTimeInMillis() : -1;
+        }
+    }
+
+    /**
+     * A folder waiting to be listed, along with the fingerprint to record for
+     * it once its listed.
+     */
+    private static class ScanJob {
+
+        final PVRFolder folder;
+        final String fingerprint;
+
+        ScanJob(PVRFolder folder, String fingerprint) {
+            this.folder = folder;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * How folders are listed.
+     */
+    enum ListingStrategy {
+        /**
+         * Machine readable listing (RFC 3659).
+         */
+        MLSD,
+        /**
+         * Traditional 'ls' style listing.
+         */
+        LIST
+    }
+
+    /**
+     * Counts of what happened during a scan, for the logs.
+     */
+    private static class ScanMetrics {
+
+        final AtomicInteger listedWithMlsd = new AtomicInteger();
+        final AtomicInteger listedWithList = new AtomicInteger();
+        final AtomicInteger foldersSkipped = new AtomicInteger();
+        final AtomicInteger hmtFetched = new AtomicInteger();
+        final AtomicInteger hmtFromCache = new AtomicInteger();
+        private long started;
+
+        void reset() {
+            listedWithMlsd.set(0);
+            listedWithList.set(0);
+            foldersSkipped.set(0);
+            hmtFetched.set(0);
+            hmtFromCache.set(0);
+            started = System.currentTimeMillis();
+        }
+
+        String getListingStrategy() {
+            if (listedWithMlsd.get() > 0 && listedWithList.get() > 0) {
+                return "mixed";
+            } else if (listedWithMlsd.get() > 0) {
+                return ListingStrategy.MLSD.name();
+            } else {
+                return ListingStrategy.LIST.name();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder()
+                    .append(System.currentTimeMillis() - started).append("ms, ")
+                    .append(listedWithMlsd.get() + listedWithList.get()).append(" folders listed (")
+                    .append(getListingStrategy()).append("), ")
+                    .append(foldersSkipped.get()).append(" skipped, ")
+                    .append(hmtFetched.get()).append(" HMT fetched, ")
+                    .append(hmtFromCache.get()).append(" HMT from cache")
+                    .toString();
+        }
+    }
+
 }
@@ -0,0 +1,464 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static com.moosemorals.mediabrowser.PVR.DEFAULT_TIMEZONE;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.net.PrintCommandListener;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPClientConfig;
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a pool of logged in FTP connections to the PVR.
+ *
+ * <p>
+ * The PVR is slow to connect and login to, so rather than connecting for every
+ * operation, sessions are leased from here and released when done. Idle
+ * sessions are kept alive with NOOPs, and broken sessions (the server sent a
+ * 421, or the socket went away) are thrown away and replaced with a new
+ * connection on the next lease.</p>
+ *
+ * <p>
+ * Leases have a {@link Priority}. When all the sessions are in use, waiting
+ * leases are served highest priority first, and long running lower priority
+ * work is expected to call {@link #checkpoint(Session, Priority)} between
+ * steps so that user actions don't have to wait for a whole scan.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class FtpSessionManager {
+
+    private static final int KEEPALIVE_INTERVAL = 30; // seconds
+    private static final long VALIDATE_AFTER = 10 * 1000; // miliseconds
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000; // miliseconds
+
+    /**
+     * Check if an exception means the connection is no good any more.
+     *
+     * @param ex IOException to check
+     * @return boolean true if the session should be thrown away.
+     */
+    static boolean isConnectionProblem(IOException ex) {
+        return ex instanceof FTPConnectionClosedException
+                || ex instanceof SocketException
+                || (ex instanceof InterruptedIOException && !Thread.currentThread().isInterrupted());
+    }
+
+    private final Logger log = LoggerFactory.getLogger(FtpSessionManager.class);
+    private final boolean debugFTP = false;
+    private final String remoteHostname;
+    private final int maxSessions;
+    private final LinkedList<Session> idle;
+    private final ScheduledThreadPoolExecutor keepalive;
+    private final int[] waiting;
+    private int open = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a session manager.
+     *
+     * @param remoteHostname String hostname (or IP address) of the PVR
+     * @param maxSessions int maximum number of connections to have open at
+     * once.
+     */
+    FtpSessionManager(String remoteHostname, int maxSessions) {
+        this.remoteHostname = remoteHostname;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.idle = new LinkedList<>();
+        this.waiting = new int[Priority.values().length];
+
+        keepalive = new ScheduledThreadPoolExecutor(1);
+        keepalive.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        keepalive.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                keepAlive();
+            }
+        }, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get a logged in session for an interactive (user) action. See
+     * {@link #lease(Priority)}.
+     *
+     * @return Session connected and logged in.
+     * @throws IOException if we can't connect, or are interrupted while
+     * waiting.
+     */
+    Session lease() throws IOException {
+        return lease(Priority.Interactive);
+    }
+
+    /**
+     * Get a logged in session, waiting for one to be released if the maximum
+     * number are already in use. If there are higher priority leases waiting
+     * they go first. Sessions must be given back with
+     * {@link #release(Session)}.
+     *
+     * @param priority Priority of the work the session is for
+     * @return Session connected and logged in.
+     * @throws IOException if we can't connect, or are interrupted while
+     * waiting.
+     */
+    Session lease(Priority priority) throws IOException {
+        while (true) {
+            Session candidate = null;
+            synchronized (idle) {
+                waiting[priority.ordinal()] += 1;
+                try {
+                    while (((idle.isEmpty() && open >= maxSessions) || isHigherWaiting(priority)) && !closed) {
+                        idle.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for an FTP session");
+                } finally {
+                    waiting[priority.ordinal()] -= 1;
+                    // Let lower priority leases re-check
+                    idle.notifyAll();
+                }
+                if (closed) {
+                    throw new IOException("FTP sessions have been closed");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.removeFirst();
+                } else {
+                    // Reserve a slot for the new connection
+                    open += 1;
+                }
+            }
+
+            if (candidate == null) {
+                Session session = new Session(createClient());
+                try {
+                    session.connect(remoteHostname);
+                } catch (IOException ex) {
+                    discard(session);
+                    throw ex;
+                }
+                return session;
+            } else if (candidate.isUsable()) {
+                return candidate;
+            } else {
+                log.info("Idle FTP session has gone away, reconnecting");
+                discard(candidate);
+            }
+        }
+    }
+
+    /**
+     * Give a session back. Broken sessions are disconnected, working ones are
+     * kept for the next lease.
+     *
+     * @param session Session to release. May be null.
+     */
+    void release(Session session) {
+        if (session == null) {
+            return;
+        }
+        if (session.broken || !session.client.isConnected()) {
+            discard(session);
+            return;
+        }
+        session.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!closed) {
+                idle.addFirst(session);
+                idle.notifyAll();
+                return;
+            }
+        }
+        discard(session);
+    }
+
+    /**
+     * Throw away a session (for example, because its broken), freeing its slot
+     * for a new connection.
+     *
+     * @param session Session to discard.
+     */
+    void discard(Session session) {
+        session.close();
+        synchronized (idle) {
+            open -= 1;
+            idle.notifyAll();
+        }
+    }
+
+    /**
+     * Throw away a broken session, and lease a new one in its place.
+     *
+     * @param session Session to replace
+     * @return Session new, logged in, session
+     * @throws IOException if we can't connect.
+     */
+    Session replace(Session session, Priority priority) throws IOException {
+        log.info("Reconnecting broken FTP session");
+        discard(session);
+        return lease(priority);
+    }
+
+    /**
+     * Called by long running work between steps. If a higher priority lease
+     * is waiting for a session, this session is given up and the caller waits
+     * for another one. Otherwise the session is handed straight back.
+     *
+     * @param session Session currently held by the caller
+     * @param priority Priority of the callers work
+     * @return Session to carry on with. Might not be the one passed in.
+     * @throws IOException if we can't get a new session.
+     */
+    Session checkpoint(Session session, Priority priority) throws IOException {
+        synchronized (idle) {
+            if (!isHigherWaiting(priority)) {
+                return session;
+            }
+        }
+        log.debug("Giving up {} FTP session for higher priority work", priority);
+        release(session);
+        return lease(priority);
+    }
+
+    /**
+     * Check if any leases of a higher priority are waiting. Must be called
+     * while holding the idle lock.
+     *
+     * @param priority Priority to check against
+     * @return boolean true if there are higher priority leases waiting.
+     */
+    private boolean isHigherWaiting(Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i += 1) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Disconnect all idle sessions, and stop handing out new ones. Sessions
+     * that are currently leased are disconnected when they are released.
+     */
+    void close() {
+        keepalive.shutdownNow();
+        List<Session> toClose;
+        synchronized (idle) {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+            idle.notifyAll();
+        }
+        for (Session session : toClose) {
+            discard(session);
+        }
+    }
+
+    /**
+     * Send a NOOP on idle sessions so the server doesn't time them out. Sessions
+     * that have been idle a long time are closed, apart from the most recently
+     * used one, so there's always one warm for the next user action.
+     */
+    private void keepAlive() {
+        List<Session> toCheck;
+        synchronized (idle) {
+            toCheck = new ArrayList<>(idle);
+            idle.clear();
+        }
+
+        long now = System.currentTimeMillis();
+        boolean keptOne = false;
+        for (Iterator<Session> it = toCheck.iterator(); it.hasNext();) {
+            Session session = it.next();
+            if (keptOne && now - session.lastUsed > IDLE_TIMEOUT) {
+                log.debug("Closing idle FTP session");
+                discard(session);
+                it.remove();
+            } else if (!session.noop()) {
+                discard(session);
+                it.remove();
+            } else {
+                keptOne = true;
+            }
+        }
+
+        synchronized (idle) {
+            if (closed) {
+                for (Session session : toCheck) {
+                    session.close();
+                    open -= 1;
+                }
+            } else {
+                idle.addAll(toCheck);
+                idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Create a new (unconnected) FTP client, configured for the PVR.
+     *
+     * @return FTPClient
+     */
+    private FTPClient createClient() {
+        FTPClientConfig config = new FTPClientConfig();
+        config.setServerTimeZoneId(DEFAULT_TIMEZONE.getID());
+        config.setServerLanguageCode("EN");
+
+        FTPClient client = new FTPClient();
+        client.configure(config);
+        if (debugFTP) {
+            client.addProtocolCommandListener(new PrintCommandListener(new PrintWriter(System.out), true));
+        }
+        return client;
+    }
+
+    /**
+     * What a session is wanted for, highest priority first.
+     */
+    static enum Priority {
+        /**
+         * Something the user is waiting for, like an unlock.
+         */
+        Interactive,
+        /**
+         * Fetching details for files we've already found.
+         */
+        Metadata,
+        /**
+         * Listing folders.
+         */
+        Scan
+    }
+
+    /**
+     * A logged in FTP connection, along with what we know about it.
+     */
+    class Session {
+
+        private final FTPClient client;
+        private long lastUsed;
+        private boolean broken = false;
+        private FtpScanner.ListingStrategy listingStrategy = null;
+
+        private Session(FTPClient client) {
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Get the underlying client.
+         *
+         * @return FTPClient, connected and logged in.
+         */
+        FTPClient getClient() {
+            return client;
+        }
+
+        /**
+         * Get the listing strategy for this connection, or null if it hasn't
+         * been checked yet.
+         *
+         * @return ListingStrategy
+         */
+        FtpScanner.ListingStrategy getListingStrategy() {
+            return listingStrategy;
+        }
+
+        void setListingStrategy(FtpScanner.ListingStrategy listingStrategy) {
+            this.listingStrategy = listingStrategy;
+        }
+
+        /**
+         * Check an exception thrown while using this session, and mark the
+         * session as broken if needed.
+         *
+         * @param ex IOException to check
+         * @return boolean true if the session is broken.
+         */
+        boolean checkProblem(IOException ex) {
+            if (isConnectionProblem(ex)) {
+                broken = true;
+            }
+            return broken;
+        }
+
+        private void connect(String remoteHostname) throws IOException {
+            log.info("Connecting to FTP");
+            client.connect(remoteHostname);
+            int reply = client.getReplyCode();
+            if (!FTPReply.isPositiveCompletion(reply)) {
+                throw new IOException("FTP server refused connect");
+            }
+            if (!client.login("humaxftp", "0000")) {
+                throw new IOException("Can't login to FTP");
+            }
+            if (!client.setFileType(FTPClient.BINARY_FILE_TYPE)) {
+                throw new IOException("Can't set binary transfer");
+            }
+        }
+
+        private boolean isUsable() {
+            if (!client.isConnected()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - lastUsed > VALIDATE_AFTER) {
+                return noop();
+            }
+            return true;
+        }
+
+        private boolean noop() {
+            try {
+                return client.sendNoOp();
+            } catch (IOException ex) {
+                log.debug("FTP NOOP failed: {}", ex.getMessage());
+                return false;
+            }
+        }
+
+        private void close() {
+            if (client.isConnected()) {
+                try {
+                    client.disconnect();
+                    log.info("Disconnected from FTP");
+                } catch (IOException ex) {
+                    log.warn("Problem disconnecting from FTP: {}", ex.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copy of the interesting bits of HMT files, so we don't have to fetch
+ * them from the PVR every scan.
+ *
+ * <p>
+ * Entries are keyed by the remote path of the .ts file, and are only valid
+ * while the size and timestamp of the .ts file match the values they were
+ * stored with. The cache is kept in a file between runs.</p>
+ *
+ * <p>
+ * A full scan should call {@link #startScan()} before it starts and
+ * {@link #finishScan(boolean)} once its finished, so that entries for
+ * recordings that have gone away can be dropped.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class HMTCache {
+
+    // Bump this if the file format changes. Old files are ignored.
+    private static final int VERSION = 1;
+
+    private final Logger log = LoggerFactory.getLogger(HMTCache.class);
+    private final File cacheFile;
+    private final Map<String, Entry> entries;
+    private final Set<String> seen;
+
+    /**
+     * Create a cache backed by the given file. Call {@link #load()} to read
+     * any existing entries.
+     *
+     * @param cacheFile File to keep the cache in.
+     */
+    public HMTCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        this.entries = new HashMap<>();
+        this.seen = new HashSet<>();
+    }
+
+    /**
+     * Get the cached entry for a file, if there is one and its still valid.
+     *
+     * @param remotePath String remote path of the .ts file
+     * @param size long current size of the .ts file
+     * @param timestamp long current timestamp of the .ts file
+     * @return Entry, or null if there isn't a valid entry.
+     */
+    public synchronized Entry get(String remotePath, long size, long timestamp) {
+        seen.add(remotePath);
+        Entry entry = entries.get(remotePath);
+        if (entry != null && entry.size == size && entry.timestamp == timestamp) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Store the details from an HMT file.
+     *
+     * @param remotePath String remote path of the .ts file
+     * @param size long current size of the .ts file
+     * @param timestamp long current timestamp of the .ts file
+     * @param hmt HMTFile to store
+     * @return Entry the new entry
+     */
+    public Entry put(String remotePath, long size, long timestamp, HMTFile hmt) {
+        return put(remotePath, new Entry(size, timestamp, hmt));
+    }
+
+    synchronized Entry put(String remotePath, Entry entry) {
+        seen.add(remotePath);
+        entries.put(remotePath, entry);
+        return entry;
+    }
+
+    /**
+     * Drop the entry for a file. Used when we know the HMT has changed.
+     *
+     * @param remotePath String remote path of the .ts file.
+     */
+    public synchronized void remove(String remotePath) {
+        entries.remove(remotePath);
+    }
+
+    /**
+     * Move the entry for a file when the file is moved or renamed.
+     *
+     * @param from String old remote path of the .ts file.
+     * @param to String new remote path of the .ts file.
+     */
+    public synchronized void rename(String from, String to) {
+        Entry entry = entries.remove(from);
+        if (entry != null) {
+            entries.put(to, entry);
+            if (seen.remove(from)) {
+                seen.add(to);
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries in the cache.
+     *
+     * @return int number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Start tracking which entries are used.
+     */
+    public synchronized void startScan() {
+        seen.clear();
+    }
+
+    /**
+     * Drop any entries that haven't been used since {@link #startScan()}, and
+     * save the cache. If the scan didn't complete, entries are kept, since we
+     * can't tell which of the unused ones have gone away.
+     *
+     * @param complete boolean true if every folder was scanned.
+     */
+    public synchronized void finishScan(boolean complete) {
+        if (complete) {
+            int before = entries.size();
+            for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+                if (!seen.contains(it.next())) {
+                    it.remove();
+                }
+            }
+            log.debug("Evicted {} stale HMT cache entries", before - entries.size());
+        }
+        seen.clear();
+        save();
+    }
+
+    /**
+     * Read entries from the cache file. Problems reading the file are logged
+     * and otherwise ignored, leaving the cache empty.
+     */
+    public synchronized void load() {
+        entries.clear();
+        if (!cacheFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != VERSION) {
+                log.info("Ignoring HMT cache {}: Unknown version", cacheFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String remotePath = in.readUTF();
+                entries.put(remotePath, Entry.read(in));
+            }
+            log.debug("Loaded {} HMT cache entries from {}", entries.size(), cacheFile);
+        } catch (IOException ex) {
+            log.warn("Can't read HMT cache {}: {}", cacheFile, ex.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Write entries to the cache file. Writes to a temporary file first, so a
+     * failed write doesn't leave a broken cache behind.
+     */
+    public synchronized void save() {
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            log.warn("Can't create folder for HMT cache {}", parent);
+            return;
+        }
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    e.getValue().write(out);
+                }
+            }
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            log.warn("Can't write HMT cache {}: {}", cacheFile, ex.getMessage());
+        }
+    }
+
+    /**
+     * The fields we use from an HMT file, along with the size and timestamp of
+     * the .ts file when they were read.
+     */
+    public static class Entry {
+
+        final long size;
+        final long timestamp;
+        final String title;
+        final String description;
+        final String channelName;
+        final long startTimestamp;
+        final long endTimestamp;
+        final long length;
+        final boolean highDef;
+        final boolean locked;
+
+        Entry(long size, long timestamp, HMTFile hmt) {
+            this(size, timestamp, hmt.getRecordingTitle(), hmt.getDesc(), hmt.getChannelName(),
+                    hmt.getStartTimestamp(), hmt.getEndTimestamp(), hmt.getLength(),
+                    hmt.isHighDef(), hmt.isLocked());
+        }
+
+        Entry(long size, long timestamp, String title, String description, String channelName,
+                long startTimestamp, long endTimestamp, long length, boolean highDef, boolean locked) {
+            this.size = size;
+            this.timestamp = timestamp;
+            this.title = title;
+            this.description = description;
+            this.channelName = channelName;
+            this.startTimestamp = startTimestamp;
+            this.endTimestamp = endTimestamp;
+            this.length = length;
+            this.highDef = highDef;
+            this.locked = locked;
+        }
+
+        /**
+         * Copy the HMT details into a file.
+         *
+         * @param file PVRFile to update.
+         */
+        public void applyTo(PVRFile file) {
+            file.setDescription(description);
+            file.setTitle(title);
+            file.setStartTime(new DateTime(startTimestamp * 1000, PVR.DEFAULT_TIMEZONE));
+            file.setEndTime(new DateTime(endTimestamp * 1000, PVR.DEFAULT_TIMEZONE));
+            file.setLength(new Duration(length * 1000));
+            file.setHighDef(highDef);
+            file.setLocked(locked);
+            file.setChannelName(channelName);
+            file.setFtpScanned(true);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(timestamp);
+            out.writeUTF(title);
+            out.writeUTF(description);
+            out.writeUTF(channelName);
+            out.writeLong(startTimestamp);
+            out.writeLong(endTimestamp);
+            out.writeLong(length);
+            out.writeBoolean(highDef);
+            out.writeBoolean(locked);
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(),
+                    in.readLong(), in.readLong(), in.readLong(), in.readBoolean(), in.readBoolean());
+        }
+    }
+}
@@ -44,6 +44,12 @@ import org.slf4j.LoggerFactory;
  */
 public class HMTFile {
 
+    /**
+     * Number of bytes at the start of the file that cover every field we read.
+     * See hmt.format.txt.
+     */
+    public static final int HEADER_LENGTH = 0x0800;
+
     private final Logger log = LoggerFactory.getLogger(HMTFile.class);
 
     private final byte[] raw;
@@ -51,9 +57,23 @@ public class HMTFile {
     private final Charset charset = Charset.forName("UTF8");
 
     public HMTFile(byte[] given) {
-        raw = new byte[given.length];
+        this(given, given.length);
+    }
+
+    /**
+     * Build from the first part of a buffer, so that callers can reuse one
+     * buffer for many files. Only the first {@link #HEADER_LENGTH} bytes are
+     * needed to read the details, but {@link #getBytes()} and
+     * {@link #write(java.io.OutputStream)} only give back what was given, so
+     * pass the whole file if it's going to be uploaded again.
+     *
+     * @param given byte[] buffer holding the file
+     * @param length int number of bytes from the start of the buffer to use
+     */
+    public HMTFile(byte[] given, int length) {
+        raw = new byte[length];
 
-        System.arraycopy(given, 0, raw, 0, given.length);
+        System.arraycopy(given, 0, raw, 0, length);
     }
 
     public String getDirectory() {
@@ -59,6 +59,25 @@ public class Main implements Runnable, ActionListener {
     public static final String KEY_SAVE_DOWNLOAD_COUNT = "save_download_count";
     public static final String KEY_SAVE_DOWNLOAD_REMOTE = "save_download_remote";
     public static final String KEY_SAVE_DOWNLOAD_LOCAL = "save_download_local";
+    public static final String KEY_SAVE_DOWNLOAD_DEVICE = "save_download_device";
+    public static final String KEY_FTP_SCAN_CONNECTIONS = "ftp_scan_connections";
+    public static final String KEY_FTP_HMT_CONNECTIONS = "ftp_hmt_connections";
+    public static final String KEY_DOWNLOAD_OVER_FTP = "download_over_ftp";
+    public static final String KEY_DLNA_BROWSE_REQUESTS = "dlna_browse_requests";
+    public static final String KEY_DLNA_STREAMING_PARSE = "dlna_streaming_parse";
+    public static final String KEY_DEVICE_COUNT = "device_count";
+    public static final String KEY_DEVICE_DESCRIPTOR = "device_descriptor";
+    public static final String KEY_DEVICE_UDN = "device_udn";
+
+    /**
+     * Get the folder to keep local data (caches and the like) in. The folder
+     * might not exist yet.
+     *
+     * @return File data folder.
+     */
+    public static File getDataDirectory() {
+        return new File(System.getProperty("user.home"), ".media-browser");
+    }
 
     public static void main(String args[]) {
         log.info("***** STARTUP *****");
@@ -215,6 +234,15 @@ public class Main implements Runnable, ActionListener {
             case UI.ACTION_REMOVE:
                 downloader.remove(ui.getListSelected());
                 break;
+            case UI.ACTION_USE_AUTO:
+                downloader.changeTransport(ui.getListSelected(), DownloadManager.QueueItem.Transport.Auto);
+                break;
+            case UI.ACTION_USE_HTTP:
+                downloader.changeTransport(ui.getListSelected(), DownloadManager.QueueItem.Transport.Http);
+                break;
+            case UI.ACTION_USE_FTP:
+                downloader.changeTransport(ui.getListSelected(), DownloadManager.QueueItem.Transport.Ftp);
+                break;
             case UI.ACTION_QUIT:
             case "Exit": // Stupid TrayIcon popup doesn't support Actions!
                 stop();
@@ -23,29 +23,31 @@
  */
 package com.moosemorals.mediabrowser;
 
-import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_COUNT;
-import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_LIST;
-import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_LOCAL;
-import static com.moosemorals.mediabrowser.Main.KEY_SAVE_DOWNLOAD_REMOTE;
+import static com.moosemorals.mediabrowser.Main.KEY_DEVICE_COUNT;
+import static com.moosemorals.mediabrowser.Main.KEY_DEVICE_DESCRIPTOR;
+import static com.moosemorals.mediabrowser.Main.KEY_DEVICE_UDN;
+import com.moosemorals.mediabrowser.DeviceListener.ScanType;
 import java.awt.EventQueue;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.prefs.PreferenceChangeEvent;
-import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
+import org.fourthline.cling.model.meta.RemoteDevice;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -55,15 +57,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Models a remote PVR.
+ * Models the remote PVRs.
  *
  * <p>
  * PVRs have folders that contain files. Files have a bunch of attributes.
  * (Folders also have attributes).</p>
  *
+ * <p>
+ * Each PVR found on the network gets a {@link PVRDevice}, with its own
+ * scanners, and its own folder under the root. The PVRs are scanned (and
+ * downloaded from) independently, and anything that acts on a file or folder
+ * is passed to the PVR it's on.</p>
+ *
  * @author Osric Wilkinson (osric@fluffypeople.com)
  */
-public class PVR implements TreeModel, DeviceListener {
+public class PVR implements TreeModel {
 
     public static final DateTimeZone DEFAULT_TIMEZONE = DateTimeZone.forID("Europe/London");
     public static final DateTimeFormatter FILE_DATE_FORMAT = DateTimeFormat.forPattern("YYYY-MM-dd HH-mm").withZone(DEFAULT_TIMEZONE);
@@ -115,15 +123,20 @@ public class PVR implements TreeModel, DeviceListener {
     private final Set<TreeModelListener> treeModelListeners = new HashSet<>();
     private final PVRFolder rootFolder;
     private final AtomicBoolean running;
-    private final DlnaScanner dlnaClient;
+    private final DeviceFinder finder;
     private final Preferences prefs;
     private final ScheduledThreadPoolExecutor scheduler;
-    private ScheduledFuture<?> scanTask;
-    private FtpScanner ftpClient;
-    
+    // Guarded by devices
+    private final Map<String, PVRDevice> devices = new LinkedHashMap<>();
+    private final Map<PVRFolder, PVRDevice> deviceRoots = new HashMap<>();
+    // UDN to description URL of PVRs we have connected to before
+    private final Map<String, String> knownDevices = new LinkedHashMap<>();
+    // Guarded by deviceListener
+    private final Map<ScanType, Integer> scanning = new EnumMap<>(ScanType.class);
+    private int connected = 0;
 
     PVR(Preferences prefs) {
-        rootFolder = new PVRFolder(null, "/", "Humax HDR FOX-T2");
+        rootFolder = new PVRFolder(null, "/", "Humax PVRs");
 
         // OK, this isn't strictly true, but we'll just have to cope.
         rootFolder.setFtpScanned(true);
@@ -134,10 +147,8 @@ public class PVR implements TreeModel, DeviceListener {
         scheduler.setRemoveOnCancelPolicy(true);
 
         this.prefs = prefs;
-        dlnaClient = new DlnaScanner(this);
+        finder = new DeviceFinder(this);
         running = new AtomicBoolean(false);
-
-        
     }
 
     @Override
@@ -194,8 +205,17 @@ public class PVR implements TreeModel, DeviceListener {
     public void start() {
         if (running.compareAndSet(false, true)) {
 
-            dlnaClient.addDeviceListener(this);
-            dlnaClient.startSearch();
+            // If we've seen PVRs before, ask them for their descriptions
+            // directly. Whichever of that and the search gets an answer
+            // first connects us.
+            loadKnownDevices();
+            synchronized (devices) {
+                for (Map.Entry<String, String> e : knownDevices.entrySet()) {
+                    log.info("Trying last known device at {}", e.getValue());
+                    finder.probe(e.getValue(), e.getKey());
+                }
+            }
+            finder.startSearch();
         }
     }
 
@@ -206,62 +226,285 @@ public class PVR implements TreeModel, DeviceListener {
         if (running.compareAndSet(true, false)) {
             log.debug("Stopping");
             scheduler.shutdown();
-            dlnaClient.stop();
-            if (ftpClient != null) {
-                ftpClient.stop();
+            for (PVRDevice device : getDevices()) {
+                device.stop();
             }
+            finder.stop();
 
             rootFolder.clearChildren();
             notifyTreeStructureUpdate(new TreeModelEvent(this, rootFolder.getTreePath()));
         }
     }
 
+    /**
+     * Called by the {@link DeviceFinder} when a PVR turns up. PVRs that have
+     * been seen before (since we started) get their old folder back.
+     *
+     * @param remote RemoteDevice from Cling
+     */
+    void onRemoteDeviceAdded(RemoteDevice remote) {
+        if (!running.get()) {
+            return;
+        }
+        String udn = remote.getIdentity().getUdn().getIdentifierString();
+        PVRDevice device;
+        boolean added = false;
+        synchronized (devices) {
+            device = devices.get(udn);
+            if (device == null) {
+                String name = remote.getDisplayString() + " (" + remote.getIdentity().getDescriptorURL().getHost() + ")";
+                device = new PVRDevice(this, prefs, scheduler, finder.getUpnpService(), udn, name);
+                devices.put(udn, device);
+                deviceRoots.put(device.getRoot(), device);
+                // Each PVR's change checks shouldn't wait for the others
+                scheduler.setCorePoolSize(devices.size());
+                added = true;
+            }
+        }
+        if (added) {
+            PVRFolder root = device.getRoot();
+            rootFolder.addChild(root);
+            notifyTreeNodeInserted(new TreeModelEvent(this, rootFolder.getTreePath(), new int[]{rootFolder.getChildIndex(root)}, new Object[]{root}));
+        }
+        device.connect(remote);
+    }
+
+    /**
+     * Called by the {@link DeviceFinder} when a PVR goes away. Its folder is
+     * kept, in case it comes back.
+     *
+     * @param remote RemoteDevice from Cling
+     */
+    void onRemoteDeviceRemoved(RemoteDevice remote) {
+        PVRDevice device;
+        synchronized (devices) {
+            device = devices.get(remote.getIdentity().getUdn().getIdentifierString());
+        }
+        if (device != null) {
+            device.disconnect();
+        }
+    }
+
+    private List<PVRDevice> getDevices() {
+        synchronized (devices) {
+            return new ArrayList<>(devices.values());
+        }
+    }
+
+    /**
+     * Find the PVR an item is on.
+     *
+     * @param item PVRItem to look for
+     * @return PVRDevice, or null for the root (or an item that isn't in the
+     * tree)
+     */
+    PVRDevice getDevice(PVRItem item) {
+        PVRFolder root = item.getDeviceFolder();
+        synchronized (devices) {
+            return deviceRoots.get(root);
+        }
+    }
+
+    private PVRDevice requireDevice(PVRItem item) throws IOException {
+        PVRDevice device = getDevice(item);
+        if (device == null) {
+            throw new IOException("Not on a PVR: " + item.getRemoteFilename());
+        }
+        return device;
+    }
+
+    /**
+     * Read the PVRs we've connected to before from preferences.
+     */
+    private void loadKnownDevices() {
+        int count = prefs.getInt(KEY_DEVICE_COUNT, 0);
+        synchronized (devices) {
+            for (int i = 0; i < count; i += 1) {
+                String udn = prefs.get(KEY_DEVICE_UDN + i, null);
+                String descriptor = prefs.get(KEY_DEVICE_DESCRIPTOR + i, null);
+                if (udn != null && descriptor != null) {
+                    knownDevices.put(udn, descriptor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember a PVR, so it can be probed directly next time.
+     *
+     * @param device PVRDevice that's connected
+     */
+    private void saveKnownDevice(PVRDevice device) {
+        if (device.getDescriptorURL() == null) {
+            return;
+        }
+        synchronized (devices) {
+            knownDevices.put(device.getUdn(), device.getDescriptorURL());
+            int i = 0;
+            for (Map.Entry<String, String> e : knownDevices.entrySet()) {
+                prefs.put(KEY_DEVICE_UDN + i, e.getKey());
+                prefs.put(KEY_DEVICE_DESCRIPTOR + i, e.getValue());
+                i += 1;
+            }
+            prefs.putInt(KEY_DEVICE_COUNT, i);
+        }
+    }
+
     public void treeWalk(TreeWalker walker, boolean update) {
         rootFolder.treeWalk(this, walker, update);
     }
 
     public void unlockFile(List<PVRFile> files) throws IOException {
-        if (ftpClient != null) {
-            ftpClient.unlockFile(files);
+        Map<PVRDevice, List<PVRFile>> byDevice = new LinkedHashMap<>();
+        for (PVRFile file : files) {
+            PVRDevice device = getDevice(file);
+            if (device != null) {
+                List<PVRFile> group = byDevice.get(device);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    byDevice.put(device, group);
+                }
+                group.add(file);
+            }
+        }
+        for (Map.Entry<PVRDevice, List<PVRFile>> e : byDevice.entrySet()) {
+            e.getKey().unlockFile(e.getValue());
         }
     }
 
-    public void moveToFolder(List<PVRFile> files, PVRFolder destination) throws IOException {
-        if (ftpClient != null) {
-            //    ftpClient.moveToFolder(files, destination);
-
-            for (PVRFile file : files) {
-                PVRFolder parent = file.getParent();
-                int index = parent.getChildIndex(file);
-                notifyTreeNodeRemoved(new TreeModelEvent(this, parent.getTreePath(), new int[]{index}, new Object[]{file}));
-                destination.addChild(file);
+    /**
+     * Tell the scanners which folders the user is looking at, so they can be
+     * scanned first. Each PVR is told about its own folders.
+     *
+     * @param folders List of PVRFolders that are expanded or visible.
+     */
+    public void setWantedFolders(List<PVRFolder> folders) {
+        Map<PVRDevice, List<PVRFolder>> byDevice = new HashMap<>();
+        for (PVRDevice device : getDevices()) {
+            byDevice.put(device, new ArrayList<PVRFolder>());
+        }
+        for (PVRFolder folder : folders) {
+            PVRDevice device = getDevice(folder);
+            if (device != null && byDevice.containsKey(device)) {
+                byDevice.get(device).add(folder);
             }
+        }
+        for (Map.Entry<PVRDevice, List<PVRFolder>> e : byDevice.entrySet()) {
+            e.getKey().setWantedFolders(e.getValue());
+        }
+    }
 
-            notifyTreeStructureUpdate(new TreeModelEvent(this, destination.getTreePath()));
+    /**
+     * Open a file over FTP, for downloading.
+     *
+     * @param file PVRFile to open
+     * @param offset long where to start reading from.
+     * @return InputStream of the file. Must be closed.
+     * @throws IOException if there's no FTP connection, or the file can't be
+     * opened.
+     */
+    public InputStream retrieveFile(PVRFile file, long offset) throws IOException {
+        return requireDevice(file).retrieveFile(file, offset);
+    }
 
+    /**
+     * Move files to a different folder on the PVR.
+     *
+     * @param files List of PVRFiles to move
+     * @param destination PVRFolder to move them to
+     * @throws IOException
+     */
+    public void moveToFolder(List<PVRFile> files, PVRFolder destination) throws IOException {
+        RemoteBatch batch = new RemoteBatch();
+        for (PVRFile file : files) {
+            if (file.getParent() != destination) {
+                batch.move(file, destination);
+            }
         }
+        apply(batch);
     }
 
     /**
-     * After a scan is completed, remove any items that no longer exist.
+     * Run a batch of file operations on the PVR, and then update the tree to
+     * match. If something goes wrong part way through, the tree is still
+     * updated with the operations that worked.
+     *
+     * <p>
+     * Everything in the batch has to be on the same PVR, since files can't be
+     * moved from one PVR to another.</p>
      *
-     * @param age
+     * @param batch RemoteBatch to run
+     * @throws IOException
      */
-    private void removeStaleItems(final long age) {
-        final long now = System.currentTimeMillis();
-        treeWalk(new TreeWalker() {
-            @Override
-            public void action(PVRItem item, Iterator it) {
-                if (now - item.getLastScanned() > age) {
-                    PVRFolder parent = item.getParent();
-                    int index = parent.getChildIndex(item);
+    public void apply(RemoteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        PVRDevice device = null;
+        for (RemoteBatch.Operation.Type type : RemoteBatch.Operation.Type.values()) {
+            for (RemoteBatch.Operation op : batch.getOperations(type)) {
+                PVRDevice target = requireDevice(op.folder);
+                if (op.item != null && requireDevice(op.item) != target) {
+                    throw new IOException("Can't move files between PVRs");
+                }
+                if (device != null && device != target) {
+                    throw new IOException("Can't move files between PVRs");
+                }
+                device = target;
+            }
+        }
 
-                    it.remove();
+        List<RemoteBatch.Operation> done = new ArrayList<>();
+        try {
+            device.apply(batch, done);
+        } finally {
+            applyToTree(done);
+        }
+    }
 
-                    notifyTreeNodeRemoved(new TreeModelEvent(this, parent.getTreePath(), new int[]{index}, new Object[]{item}));
-                }
+    /**
+     * Update the tree with completed file operations. All the changes are
+     * made first, and then listeners are told about each folder that changed.
+     *
+     * @param done List of completed operations
+     */
+    private void applyToTree(List<RemoteBatch.Operation> done) {
+        Set<PVRFolder> changed = new LinkedHashSet<>();
+        for (RemoteBatch.Operation op : done) {
+            switch (op.type) {
+                case CreateFolder:
+                    if (op.folder.getChild(op.name) == null) {
+                        PVRFolder folder = new PVRFolder(op.folder, op.folder.getRemotePath() + op.name + "/", op.name);
+                        folder.setFtpScanned(true);
+                        op.folder.addChild(folder);
+                    }
+                    changed.add(op.folder);
+                    break;
+                case Move:
+                    PVRFolder from = op.item.getParent();
+                    from.removeChild(op.item);
+                    op.item.setRemoteFilename(op.name);
+                    if (op.item.isFolder()) {
+                        op.item.setRemotePath(op.folder.getRemotePath() + op.name + "/");
+                        op.folder.addChild(op.item);
+                        ((PVRFolder) op.item).updatePaths();
+                    } else {
+                        op.item.setRemotePath(op.folder.getRemotePath() + op.name);
+                        op.folder.addChild(op.item);
+                    }
+                    changed.add(from);
+                    changed.add(op.folder);
+                    break;
+                case DeleteFolder:
+                    op.folder.removeChild(op.item);
+                    changed.add(op.folder);
+                    break;
             }
-        }, true);
+        }
+
+        for (PVRFolder folder : changed) {
+            notifyTreeStructureUpdate(new TreeModelEvent(this, folder.getTreePath()));
+        }
     }
 
     /**
@@ -310,6 +553,47 @@ public class PVR implements TreeModel, DeviceListener {
 
     }
 
+    /**
+     * Get the files FTP has found that DLNA hasn't. These can't be
+     * downloaded over HTTP yet.
+     *
+     * @return List of PVRFiles
+     */
+    public List<PVRFile> getFtpOnlyFiles() {
+        List<PVRFile> result = new ArrayList<>();
+        for (PVRDevice device : getDevices()) {
+            result.addAll(device.getFtpOnlyFiles());
+        }
+        return result;
+    }
+
+    /**
+     * Get the files DLNA has found that FTP hasn't. These are usually ghosts
+     * of files that have been moved or deleted.
+     *
+     * @return List of PVRFiles
+     */
+    public List<PVRFile> getDlnaOnlyFiles() {
+        List<PVRFile> result = new ArrayList<>();
+        for (PVRDevice device : getDevices()) {
+            result.addAll(device.getDlnaOnlyFiles());
+        }
+        return result;
+    }
+
+    /**
+     * Get the files that DLNA has in a different folder to FTP.
+     *
+     * @return List of PVRFiles, as found by FTP
+     */
+    public List<PVRFile> getMovedFiles() {
+        List<PVRFile> result = new ArrayList<>();
+        for (PVRDevice device : getDevices()) {
+            result.addAll(device.getMovedFiles());
+        }
+        return result;
+    }
+
     void notifyTreeNodeRemoved(final TreeModelEvent e) {
         EventQueue.invokeLater(new Runnable() {
             @Override
@@ -362,64 +646,123 @@ public class PVR implements TreeModel, DeviceListener {
         });
     }
 
-    @Override
-    public void onDeviceFound() {
-        log.info("Connected to device");
-        notifyConnectionListners(true);
-
-        if (ftpClient == null) {
-            ftpClient = new FtpScanner(this, dlnaClient.getRemoteHostname());
-            ftpClient.addDeviceListener(this);
+    /**
+     * Called when a PVR connects. Listeners are told when the first one
+     * does.
+     *
+     * @param device PVRDevice that's connected
+     */
+    void onDeviceConnected(PVRDevice device) {
+        saveKnownDevice(device);
+        boolean first;
+        synchronized (deviceListener) {
+            connected += 1;
+            first = connected == 1;
         }
+        if (first) {
+            notifyConnectionListners(true);
+        }
+    }
 
-        scanTask = scheduler.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                log.debug("Scheduled scan");
-                triggerScan();
-            }
-        }, 0, 5, TimeUnit.MINUTES);
+    /**
+     * Called when a PVR disconnects. Listeners are told when the last one
+     * does.
+     *
+     * @param device PVRDevice that's gone
+     */
+    void onDeviceDisconnected(PVRDevice device) {
+        boolean last;
+        synchronized (deviceListener) {
+            connected = Math.max(0, connected - 1);
+            last = connected == 0;
+        }
+        if (last) {
+            notifyConnectionListners(false);
+        }
     }
 
-    @Override
-    public void onDeviceLost() {
-        if (scanTask != null) {
-            scanTask.cancel(true);
+    /**
+     * Called when a PVR starts a scan. Listeners are told when the first PVR
+     * starts scanning, rather than once for each PVR.
+     *
+     * @param type ScanType of the scan
+     */
+    void onDeviceScanStart(ScanType type) {
+        if (countScan(type, 1) == 1) {
+            notifyScanListeners(type, true);
         }
-        log.info("Disconnected from device");
-        notifyConnectionListners(false);
-        if (ftpClient != null) {
-            ftpClient.stop();
-            ftpClient = null;
+    }
+
+    void onDeviceScanProgress(ScanType type, int total, int completed) {
+        notifyScanisteners(type, total, completed);
+    }
+
+    /**
+     * Called when a PVR finishes a scan. Listeners are told when the last PVR
+     * stops scanning.
+     *
+     * @param type ScanType of the scan
+     */
+    void onDeviceScanComplete(ScanType type) {
+        if (countScan(type, -1) == 0) {
+            notifyScanListeners(type, false);
         }
-        treeWalk(new TreeWalker() {
-            @Override
-            public void action(PVRItem item, Iterator it) {
-                if (item.isFile()) {
-                    PVRFile file = (PVRFile) item;
-                    file.setDlnaScanned(false);
-                }
-            }
-        }, true);
     }
 
-    @Override
-    public void onScanStart(ScanType type) {
-        notifyScanListeners(type, true);
+    private int countScan(ScanType type, int delta) {
+        synchronized (deviceListener) {
+            Integer count = scanning.get(type);
+            int result = Math.max(0, (count != null ? count : 0) + delta);
+            scanning.put(type, result);
+            return result;
+        }
     }
 
+    /**
+     * Start a full scan of every PVR.
+     */
     public void triggerScan() {
-        if (ftpClient != null) {
-            ftpClient.start();
-        } else {
-            log.warn("No FTP client, not scanning");
+        triggerScan(true);
+    }
+
+    /**
+     * Start a scan of every PVR.
+     *
+     * @param full boolean true to list every folder, false to only list
+     * folders that look like they've changed.
+     */
+    public void triggerScan(boolean full) {
+        for (PVRDevice device : getDevices()) {
+            device.triggerScan(full);
         }
     }
 
+    /**
+     * Mark a folder, and everything under it, as scanned without otherwise
+     * changing it. Used when a scan skips a folder that hasn't changed.
+     *
+     * @param folder PVRFolder to refresh.
+     */
+    void refreshSubtree(PVRFolder folder) {
+        final long now = System.currentTimeMillis();
+        folder.setLastScanned(now);
+        folder.treeWalk(this, new TreeWalker() {
+            @Override
+            public void action(PVRItem item, Iterator it) {
+                item.setLastScanned(now);
+            }
+        }, false);
+    }
+
     void updateItem(PVRItem item) {
         DownloadManager.getInstance().addIfSaved(item);
-            
-        
+
+        if (item.isFile()) {
+            PVRDevice device = getDevice(item);
+            if (device != null) {
+                device.trackUnresolved((PVRFile) item);
+            }
+        }
 
         item.setLastScanned(System.currentTimeMillis());
 
@@ -430,21 +773,6 @@ public class PVR implements TreeModel, DeviceListener {
         notifyTreeNodeChanged(new TreeModelEvent(this, item.getTreePath(), null, null));
     }
 
-    @Override
-    public void onScanProgress(ScanType type, int total, int completed) {
-        notifyScanisteners(type, total, completed);
-    }
-
-    @Override
-    public void onScanComplete(ScanType type) {
-        notifyScanListeners(type, false);
-        if (running.get() && type == ScanType.ftp) {
-            dlnaClient.startScan();
-        } else if (running.get() && type == ScanType.dlna) {
-            removeStaleItems(5 * 60 * 1000);
-        }
-    }
-
     private final Set<DeviceListener> deviceListener = new HashSet<>();
 
 
@@ -0,0 +1,546 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static com.moosemorals.mediabrowser.Main.KEY_DLNA_BROWSE_REQUESTS;
+import static com.moosemorals.mediabrowser.Main.KEY_DLNA_STREAMING_PARSE;
+import static com.moosemorals.mediabrowser.Main.KEY_FTP_HMT_CONNECTIONS;
+import static com.moosemorals.mediabrowser.Main.KEY_FTP_SCAN_CONNECTIONS;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+import javax.swing.event.TreeModelEvent;
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One PVR, and everything needed to scan it and download from it.
+ *
+ * <p>
+ * Each PVR has its own DLNA and FTP scanners (and so its own FTP connection
+ * limits), HMT cache and reconciliation index, and its own folder under the
+ * {@link PVR} root. Remote paths are relative to that folder, so they're the
+ * same as the paths on the PVR.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class PVRDevice implements DeviceListener {
+
+    private static final int CHANGE_CHECK_INTERVAL = 30; // seconds
+    private static final int FULL_SCAN_INTERVAL = 60; // minutes
+
+    private final Logger log = LoggerFactory.getLogger(PVRDevice.class);
+    private final PVR pvr;
+    private final Preferences prefs;
+    private final ScheduledExecutorService scheduler;
+    private final String udn;
+    private final PVRFolder root;
+    private final DlnaScanner dlnaClient;
+    private final HMTCache hmtCache;
+    private final Set<PVRFile> unresolved = new LinkedHashSet<>();
+    private final ReconcileIndex reconcile = new ReconcileIndex();
+    private ScheduledFuture<?> scanTask;
+    private ScheduledFuture<?> changeTask;
+    private FtpScanner ftpClient;
+    private List<PVRFolder> wantedFolders = new ArrayList<>();
+    private volatile boolean running = true;
+    private boolean connected = false;
+
+    /**
+     * Create a device. Its folder still has to be added to the tree, and it
+     * doesn't do anything until {@link #connect(RemoteDevice)} is called.
+     *
+     * @param pvr PVR that holds the tree
+     * @param prefs Preferences for connection limits
+     * @param scheduler ScheduledExecutorService for scans and change checks
+     * @param upnpService UpnpService to send DLNA requests through
+     * @param udn String unique device name of the PVR
+     * @param name String name to show for the PVR
+     */
+    PVRDevice(PVR pvr, Preferences prefs, ScheduledExecutorService scheduler, UpnpService upnpService, String udn, String name) {
+        this.pvr = pvr;
+        this.prefs = prefs;
+        this.scheduler = scheduler;
+        this.udn = udn;
+
+        root = new PVRFolder((PVRFolder) pvr.getRoot(), "/", name);
+        // As with the main root, not strictly true.
+        root.setFtpScanned(true);
+        root.setDlnaScanned(true);
+
+        hmtCache = new HMTCache(new File(Main.getDataDirectory(), "hmt-" + udn.replaceAll("[^A-Za-z0-9-]", "_") + ".cache"));
+        hmtCache.load();
+
+        dlnaClient = new DlnaScanner(pvr, this, upnpService,
+                prefs.getInt(KEY_DLNA_BROWSE_REQUESTS, DlnaScanner.DEFAULT_BROWSE_REQUESTS),
+                prefs.getBoolean(KEY_DLNA_STREAMING_PARSE, true));
+        dlnaClient.addDeviceListener(this);
+    }
+
+    /**
+     * Get the folder that holds everything on this PVR.
+     *
+     * @return PVRFolder
+     */
+    PVRFolder getRoot() {
+        return root;
+    }
+
+    String getName() {
+        return root.getRemoteFilename();
+    }
+
+    String getUdn() {
+        return udn;
+    }
+
+    String getDescriptorURL() {
+        return dlnaClient.getDescriptorURL();
+    }
+
+    /**
+     * Start talking to the PVR, once it's been found on the network.
+     *
+     * @param remote RemoteDevice from Cling
+     */
+    void connect(RemoteDevice remote) {
+        if (running) {
+            dlnaClient.connect(remote);
+        }
+    }
+
+    /**
+     * Stop talking to the PVR, once it's gone from the network.
+     */
+    void disconnect() {
+        dlnaClient.disconnect();
+    }
+
+    /**
+     * Stop any running threads and tidy up.
+     */
+    void stop() {
+        running = false;
+        cancelTasks();
+        dlnaClient.stop();
+        FtpScanner ftp = ftpClient;
+        if (ftp != null) {
+            ftp.close();
+        }
+    }
+
+    private synchronized void cancelTasks() {
+        if (scanTask != null) {
+            scanTask.cancel(true);
+            scanTask = null;
+        }
+        if (changeTask != null) {
+            changeTask.cancel(true);
+            changeTask = null;
+        }
+    }
+
+    @Override
+    public void onDeviceFound() {
+        log.info("Connected to {}", getName());
+
+        if (ftpClient == null) {
+            ftpClient = new FtpScanner(pvr, this, dlnaClient.getRemoteHostname(),
+                    prefs.getInt(KEY_FTP_SCAN_CONNECTIONS, FtpScanner.DEFAULT_SCAN_CONNECTIONS),
+                    prefs.getInt(KEY_FTP_HMT_CONNECTIONS, FtpScanner.DEFAULT_HMT_CONNECTIONS),
+                    hmtCache);
+            ftpClient.addDeviceListener(this);
+            ftpClient.setWantedFolders(wantedFolders);
+        }
+
+        boolean again;
+        synchronized (this) {
+            again = connected;
+            connected = true;
+        }
+        if (!again) {
+            pvr.onDeviceConnected(this);
+        }
+
+        synchronized (this) {
+            // The same PVR can be found more than once (by the startup probe
+            // and then the search, say), so drop the tasks from last time.
+            cancelTasks();
+
+            // Full scans are a safety net, changes should be picked up by the
+            // change check long before then.
+            scanTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    log.debug("Scheduled scan of {}", getName());
+                    triggerScan(true);
+                }
+            }, 0, FULL_SCAN_INTERVAL, TimeUnit.MINUTES);
+
+            changeTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pollForChanges();
+                }
+            }, CHANGE_CHECK_INTERVAL, CHANGE_CHECK_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void onDeviceLost() {
+        cancelTasks();
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+        }
+        log.info("Disconnected from {}", getName());
+        if (ftpClient != null) {
+            ftpClient.close();
+            ftpClient = null;
+        }
+        root.treeWalk(pvr, new PVR.TreeWalker() {
+            @Override
+            public void action(PVRItem item, Iterator it) {
+                if (item.isFile()) {
+                    PVRFile file = (PVRFile) item;
+                    file.setDlnaScanned(false);
+                }
+            }
+        }, true);
+        pvr.onDeviceDisconnected(this);
+    }
+
+    @Override
+    public void onScanStart(ScanType type) {
+        pvr.onDeviceScanStart(type);
+    }
+
+    @Override
+    public void onScanProgress(ScanType type, int total, int completed) {
+        pvr.onDeviceScanProgress(type, total, completed);
+    }
+
+    @Override
+    public void onScanComplete(ScanType type) {
+        pvr.onDeviceScanComplete(type);
+        if (running && type == ScanType.ftp) {
+            dlnaClient.resolve(takeUnresolved());
+        } else if (running && type == ScanType.dlna) {
+            removeStaleItems(5 * 60 * 1000);
+        }
+    }
+
+    /**
+     * Poll for changes, unless the PVR is sending content events. If it isn't,
+     * try subscribing again for next time.
+     */
+    private void pollForChanges() {
+        if (dlnaClient.isSubscribed()) {
+            return;
+        }
+        dlnaClient.subscribe();
+        checkForChanges();
+    }
+
+    /**
+     * Called when the PVR says something has changed, but not what.
+     */
+    void onContentChanged() {
+        if (running) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkForChanges();
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask the FTP scanner if anything has changed at the top level, and start
+     * an incremental scan if it has.
+     */
+    private void checkForChanges() {
+        FtpScanner ftp = ftpClient;
+        if (ftp == null) {
+            return;
+        }
+        try {
+            if (ftp.hasChanged()) {
+                log.info("Change detected on {}, scanning", getName());
+                triggerScan(false);
+            }
+        } catch (IOException ex) {
+            log.warn("Can't check {} for changes: {}", getName(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Start a scan of the PVR.
+     *
+     * @param full boolean true to list every folder, false to only list
+     * folders that look like they've changed.
+     */
+    void triggerScan(boolean full) {
+        FtpScanner ftp = ftpClient;
+        if (ftp != null) {
+            ftp.start(full);
+        } else {
+            log.warn("No FTP client for {}, not scanning", getName());
+        }
+    }
+
+    /**
+     * After a scan is completed, remove any items that no longer exist.
+     *
+     * @param age long how long since an item was last seen before it's
+     * removed, in miliseconds
+     */
+    private void removeStaleItems(final long age) {
+        final long now = System.currentTimeMillis();
+        root.treeWalk(pvr, new PVR.TreeWalker() {
+            @Override
+            public void action(PVRItem item, Iterator it) {
+                if (now - item.getLastScanned() > age) {
+                    PVRFolder parent = item.getParent();
+                    int index = parent.getChildIndex(item);
+
+                    it.remove();
+                    if (item.isFile()) {
+                        reconcile.removeFtp((PVRFile) item);
+                    }
+
+                    pvr.notifyTreeNodeRemoved(new TreeModelEvent(pvr, parent.getTreePath(), new int[]{index}, new Object[]{item}));
+                }
+            }
+        }, true);
+    }
+
+    void unlockFile(List<PVRFile> files) throws IOException {
+        FtpScanner ftp = ftpClient;
+        if (ftp != null) {
+            ftp.unlockFile(files);
+        }
+    }
+
+    /**
+     * Tell the FTP scanner which of this PVR's folders the user is looking
+     * at.
+     *
+     * @param folders List of PVRFolders on this PVR
+     */
+    void setWantedFolders(List<PVRFolder> folders) {
+        wantedFolders = new ArrayList<>(folders);
+        FtpScanner ftp = ftpClient;
+        if (ftp != null) {
+            ftp.setWantedFolders(wantedFolders);
+        }
+    }
+
+    /**
+     * Open a file over FTP, for downloading.
+     *
+     * @param file PVRFile to open
+     * @param offset long where to start reading from.
+     * @return InputStream of the file. Must be closed.
+     * @throws IOException if there's no FTP connection, or the file can't be
+     * opened.
+     */
+    InputStream retrieveFile(PVRFile file, long offset) throws IOException {
+        FtpScanner ftp = ftpClient;
+        if (ftp == null) {
+            throw new IOException("Not connected to " + getName());
+        }
+        return ftp.retrieveFile(file, offset);
+    }
+
+    /**
+     * Run a batch of file operations on the PVR.
+     *
+     * @param batch RemoteBatch to run
+     * @param done List to add operations to as they complete
+     * @throws IOException
+     */
+    void apply(RemoteBatch batch, List<RemoteBatch.Operation> done) throws IOException {
+        FtpScanner ftp = ftpClient;
+        if (ftp == null) {
+            throw new IOException("Not connected to " + getName());
+        }
+        ftp.apply(batch, done);
+    }
+
+    /**
+     * Keep track of files that don't have a download URL yet, so they can be
+     * looked up after the FTP scan.
+     *
+     * @param file PVRFile that's been updated
+     */
+    void trackUnresolved(PVRFile file) {
+        synchronized (unresolved) {
+            if (file.getRemoteURL() == null) {
+                unresolved.add(file);
+            } else {
+                unresolved.remove(file);
+            }
+        }
+    }
+
+    /**
+     * Get (and forget) the files that still need a download URL. Files that
+     * have since been found, or have gone from the tree, are left out.
+     *
+     * @return List of PVRFiles
+     */
+    private List<PVRFile> takeUnresolved() {
+        List<PVRFile> result = new ArrayList<>();
+        synchronized (unresolved) {
+            for (PVRFile file : unresolved) {
+                if (file.getRemoteURL() == null && file.getParent() != null
+                        && file.getParent().getChild(file.getRemoteFilename()) == file) {
+                    result.add(file);
+                }
+            }
+            unresolved.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Tell the reconciliation index about a file FTP has found. If DLNA found
+     * the same recording first (under a different name) the file it added is
+     * removed, and its URL moved across.
+     *
+     * @param file PVRFile found by FTP, with its size set
+     */
+    void reconcileFtp(PVRFile file) {
+        ReconcileIndex.Record record = reconcile.addFtp(file);
+        PVRFile stray = record.getStray();
+        if (stray == file) {
+            // DLNA added it under the same name FTP uses
+            reconcile.clearStray(file);
+        } else if (stray != null) {
+            log.debug("Replacing {} from DLNA with {}", stray.getRemotePath(), file.getRemotePath());
+            reconcile.clearStray(stray);
+            PVRFolder parent = stray.getParent();
+            int index = parent.getChildIndex(stray);
+            if (index >= 0) {
+                parent.removeChild(stray);
+                pvr.notifyTreeNodeRemoved(new TreeModelEvent(pvr, parent.getTreePath(), new int[]{index}, new Object[]{stray}));
+            }
+        }
+        if (file.getRemoteURL() == null && record.getUrl() != null) {
+            file.setRemoteURL(record.getUrl());
+            file.setDlnaScanned(true);
+        }
+    }
+
+    /**
+     * Add a file found by DLNA. Matches it to a file from FTP through the
+     * reconciliation index if it can, then by name, and adds a new file if
+     * neither works.
+     *
+     * @param parent PVRFolder the item was found in
+     * @param id String DIDL id of the item
+     * @param title String title of the item
+     * @param size long size of the item, or -1 if not known
+     * @param url String download URL, may be null
+     * @return PVRFile the item matches
+     */
+    PVRFile addDlnaFile(PVRFolder parent, String id, String title, long size, String url) {
+        if (id == null) {
+            id = parent.getRemotePath() + title;
+        }
+        ReconcileIndex.Record record = reconcile.addDlna(id, title, size, url, parent);
+        PVRFile file = record.getFtpFile();
+        if (file == null) {
+            file = record.getStray();
+        }
+        if (file == null) {
+            PVRItem child = parent.getChild(title);
+            if (child != null && child.isFile()) {
+                file = (PVRFile) child;
+            } else {
+                file = pvr.addFile(parent, title);
+                reconcile.setStray(record, file);
+            }
+        }
+        file.setDlnaScanned(true);
+        if (url != null) {
+            file.setRemoteURL(url);
+        }
+        return file;
+    }
+
+    /**
+     * Called when a full DLNA scan starts.
+     */
+    void startDlnaPass() {
+        reconcile.startDlnaPass();
+    }
+
+    /**
+     * Called when a full DLNA scan finishes. Forgets DLNA items that weren't
+     * seen, and logs what doesn't match up.
+     */
+    void endDlnaPass() {
+        reconcile.endDlnaPass();
+        log.info("Reconciled {}: {} FTP only, {} DLNA only, {} moved", getName(),
+                reconcile.getFtpOnly().size(), reconcile.getDlnaOnly().size(), reconcile.getMoved().size());
+    }
+
+    List<PVRFile> getFtpOnlyFiles() {
+        return reconcile.getFtpOnly();
+    }
+
+    List<PVRFile> getDlnaOnlyFiles() {
+        List<PVRFile> result = new ArrayList<>();
+        for (ReconcileIndex.Record r : reconcile.getDlnaOnly()) {
+            if (r.getStray() != null) {
+                result.add(r.getStray());
+            }
+        }
+        return result;
+    }
+
+    List<PVRFile> getMovedFiles() {
+        List<PVRFile> result = new ArrayList<>();
+        for (ReconcileIndex.Record r : reconcile.getMoved()) {
+            result.add(r.getFtpFile());
+        }
+        return result;
+    }
+}
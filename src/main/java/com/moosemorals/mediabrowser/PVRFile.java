@@ -83,10 +83,17 @@ public class PVRFile extends PVRItem {
         return size;
     }
 
+    /**
+     * Can this file be downloaded. Either DLNA has found it, or FTP has found
+     * it and we've read its details from the HMT.
+     *
+     * @return boolean true if the file can be downloaded.
+     */
     @Override
     public boolean isQueueable() {
-        log.debug("Is {} queuable? {}", remoteFilename, dlna);
-        return dlna;
+        boolean result = dlna || (ftp && startTime != null);
+        log.debug("Is {} queuable? {}", remoteFilename, result);
+        return result;
     }
 
     /**
@@ -25,9 +25,10 @@ package com.moosemorals.mediabrowser;
 
 import com.moosemorals.mediabrowser.PVR.TreeWalker;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import javax.swing.event.TreeModelEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,16 +36,27 @@ import org.slf4j.LoggerFactory;
 /**
  * Represents a folder on the remote device. May have children, which will
  * either be files or folders (which may have their own children).
+ *
+ * <p>
+ * Children are kept sorted (folders first, then by name), so new children are
+ * put in place with a binary search rather than sorting the whole list, and
+ * the same search finds a child's index. There's also an index by name, so
+ * looking children up by name doesn't mean walking the list.</p>
  */
 public class PVRFolder extends PVRItem {
 
     private final Logger log = LoggerFactory.getLogger(PVRFolder.class);
 
     private final List<PVRItem> children;
+    // Guarded by children
+    private final Map<String, PVRItem> byName;
+    private String ftpFingerprint = null;
+    private int ftpEntryCount = -1;
 
     protected PVRFolder(PVRFolder parent, String path, String filename) {
         super(parent, path, filename);
         this.children = new ArrayList<>();
+        this.byName = new HashMap<>();
     }
 
     @Override
@@ -78,18 +90,143 @@ public class PVRFolder extends PVRItem {
         }
     }
 
+    /**
+     * Record the fingerprint of this folder after its been listed by FTP.
+     *
+     * @param fingerprint String fingerprint from the parent folder listing, or
+     * null if there isn't one (the root folder) or it can't be trusted.
+     * @param entryCount int number of folders and files in the listing.
+     */
+    void setFtpFingerprint(String fingerprint, int entryCount) {
+        synchronized (children) {
+            this.ftpFingerprint = fingerprint;
+            this.ftpEntryCount = entryCount;
+        }
+    }
+
+    /**
+     * Check if this folder has been listed before with the given fingerprint,
+     * and still has the same number of children from FTP as it did then.
+     * Children that only DLNA has found don't count, since they weren't in the
+     * listing.
+     *
+     * @param fingerprint String fingerprint from the parent folder listing, or
+     * null if the listing can't be trusted.
+     * @return boolean true if the folder doesn't need listing again.
+     */
+    boolean isFtpUnchanged(String fingerprint) {
+        synchronized (children) {
+            return ftpFingerprint != null
+                    && ftpFingerprint.equals(fingerprint)
+                    && ftpEntryCount == getFtpChildCount();
+        }
+    }
+
+    /**
+     * Count the children that FTP has found, leaving out the ones that only
+     * DLNA knows about.
+     *
+     * @return int number of children found by FTP
+     */
+    int getFtpChildCount() {
+        synchronized (children) {
+            int count = 0;
+            for (PVRItem child : children) {
+                if (child.isFtpScanned()) {
+                    count += 1;
+                }
+            }
+            return count;
+        }
+    }
+
     /**
      * Add a child item to this folder. Doesn't check for duplicates.
      *
      * @param child PVRItem child to add
+     * @return int index the child was added at
      */
     int addChild(PVRItem child) {
         synchronized (children) {
-            children.add(child);
             child.setParent(this);
             child.setTreePath(treePath.pathByAddingChild(child));
-            Collections.sort(children);
-            return children.indexOf(child);
+            // After anything that sorts the same, as a stable sort would
+            int index = search(child, true);
+            children.add(index, child);
+            if (!byName.containsKey(child.getRemoteFilename())) {
+                byName.put(child.getRemoteFilename(), child);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Rename a child, moving it to keep the children in order. Its path (and
+     * for a folder, the paths of everything under it) are updated to match.
+     *
+     * @param child PVRItem to rename
+     * @param name String new name
+     * @return int new index of the child
+     */
+    int renameChild(PVRItem child, String name) {
+        synchronized (children) {
+            removeChild(child);
+            child.setRemoteFilename(name);
+            if (child.isFolder()) {
+                child.setRemotePath(remotePath + name + "/");
+                ((PVRFolder) child).updatePaths();
+            } else {
+                child.setRemotePath(remotePath + name);
+            }
+            return addChild(child);
+        }
+    }
+
+    /**
+     * Binary search the children. Must be called holding the children lock.
+     *
+     * @param child PVRItem to look for
+     * @param after boolean true to find the index after the last child that
+     * sorts the same as child, false for the first.
+     * @return int index
+     */
+    private int search(PVRItem child, boolean after) {
+        int low = 0;
+        int high = children.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            PVRItem other = children.get(mid);
+            if (!after && other == child) {
+                return mid;
+            }
+            int c = other.compareTo(child);
+            if (c < 0 || (after && c == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Forget a child that's been taken out of the list. Must be called holding
+     * the children lock.
+     *
+     * @param child PVRItem that's been removed
+     */
+    private void unindex(PVRItem child) {
+        String name = child.getRemoteFilename();
+        if (byName.get(name) == child) {
+            byName.remove(name);
+            // Another child with the same name (a folder and a file, say)
+            // takes its place
+            for (PVRItem other : children) {
+                if (other.getRemoteFilename().equals(name)) {
+                    byName.put(name, other);
+                    break;
+                }
+            }
         }
     }
 
@@ -107,24 +244,58 @@ public class PVRFolder extends PVRItem {
 
     public PVRItem getChild(String name) {
         synchronized (children) {
-            for (PVRItem child : children) {
-                if (child.getRemoteFilename().equals(name)) {
-                    return child;
-                }
-            }
+            return byName.get(name);
         }
-        return null;
     }
 
+    /**
+     * Get the index of a child.
+     *
+     * @param child PVRItem to look for
+     * @return int index, or -1 if it's not a child of this folder
+     */
     public int getChildIndex(PVRItem child) {
         synchronized (children) {
-            return children.indexOf(child);
+            int index = search(child, false);
+            // Anything that sorts the same is next to it
+            for (int i = index; i < children.size(); i += 1) {
+                PVRItem other = children.get(i);
+                if (other.equals(child)) {
+                    return i;
+                }
+                if (other.compareTo(child) != 0) {
+                    break;
+                }
+            }
+            return -1;
         }
     }
 
     public void removeChild(PVRItem child) {
         synchronized (children) {
-            children.remove(child);
+            int index = getChildIndex(child);
+            if (index >= 0) {
+                unindex(children.remove(index));
+            }
+        }
+    }
+
+    /**
+     * Fix up the remote paths and tree paths of everything under this folder,
+     * after its been moved or renamed.
+     */
+    void updatePaths() {
+        synchronized (children) {
+            for (PVRItem child : children) {
+                if (child.isFolder()) {
+                    child.setRemotePath(remotePath + child.getRemoteFilename() + "/");
+                    child.setTreePath(treePath.pathByAddingChild(child));
+                    ((PVRFolder) child).updatePaths();
+                } else {
+                    child.setRemotePath(remotePath + child.getRemoteFilename());
+                    child.setTreePath(treePath.pathByAddingChild(child));
+                }
+            }
         }
     }
 
@@ -144,19 +315,19 @@ public class PVRFolder extends PVRItem {
      */
     public void clearChildren() {
         synchronized (children) {
-            for (Iterator<PVRItem> it = children.iterator(); it.hasNext();) {
-                PVRItem item = it.next();
+            for (PVRItem item : children) {
                 if (item.isFolder()) {
                     ((PVRFolder) item).clearChildren();
                 }
-                it.remove();
             }
+            children.clear();
+            byName.clear();
         }
     }
 
     void treeWalk(PVR pvr, TreeWalker walker, boolean update) {
         synchronized (children) {
-            for (Iterator<PVRItem> it = children.iterator(); it.hasNext();) {
+            for (ChildIterator it = new ChildIterator(); it.hasNext();) {
                 PVRItem child = it.next();
                 walker.action(child, it);
                 if (child.isFolder()) {
@@ -177,4 +348,31 @@ public class PVRFolder extends PVRItem {
         }
     }
 
+    /**
+     * Iterates over the children, keeping the name index up to date if the
+     * walker removes one. Must be used holding the children lock.
+     */
+    private class ChildIterator implements Iterator<PVRItem> {
+
+        private final Iterator<PVRItem> it = children.iterator();
+        private PVRItem last = null;
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public PVRItem next() {
+            last = it.next();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            it.remove();
+            unindex(last);
+        }
+    }
+
 }
@@ -23,7 +23,6 @@
  */
 package com.moosemorals.mediabrowser;
 
-import java.util.Objects;
 import javax.swing.tree.TreePath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +30,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Parent class of PVRFile and PVRFolder. Allows Folders to have Files and
  * Folders as children.
+ *
+ * <p>
+ * Items are compared (and hashed) by identity, since there's only one item in
+ * the tree for each file or folder, and names and paths change while items
+ * are held in sets and maps. Use {@link #isSamePath(PVRItem)} to compare
+ * paths.</p>
  */
 public abstract class PVRItem implements Comparable<PVRItem> {
 
@@ -65,24 +70,21 @@ public abstract class PVRItem implements Comparable<PVRItem> {
     @Override
     public abstract int compareTo(PVRItem other);
 
-    @Override
-    public int hashCode() {
-        int hash = 7;
-        hash = 89 * hash + Objects.hashCode(this.remoteFilename);
-        hash = 89 * hash + Objects.hashCode(this.remotePath);
-        return hash;
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-        if (obj == null) {
-            return false;
-        }
-        if (getClass() != obj.getClass()) {
+    /**
+     * Check if two items are the same file or folder on the same PVR. An item
+     * that's been dropped from the tree and found again is a new item, but
+     * has the same path.
+     *
+     * @param other PVRItem to compare with
+     * @return boolean true if both items have the same path on the same PVR
+     */
+    public boolean isSamePath(PVRItem other) {
+        if (other == null || getClass() != other.getClass()) {
             return false;
         }
-        final PVRItem other = (PVRItem) obj;
-        return this.remotePath.equals(other.remotePath) && this.remoteFilename.equals(other.remoteFilename);
+        // Paths are only unique on one PVR
+        return this.remotePath.equals(other.remotePath) && this.remoteFilename.equals(other.remoteFilename)
+                && getDeviceFolder() == other.getDeviceFolder();
     }
 
     @Override
@@ -151,6 +153,17 @@ public abstract class PVRItem implements Comparable<PVRItem> {
         this.remotePath = remotePath;
     }
 
+    /**
+     * Get the top level folder of the PVR this item is on. That's the second
+     * step of the tree path, since the root holds one folder per PVR.
+     *
+     * @return PVRFolder for the PVR, or null for the root.
+     */
+    PVRFolder getDeviceFolder() {
+        TreePath path = treePath;
+        return path.getPathCount() > 1 ? (PVRFolder) path.getPathComponent(1) : null;
+    }
+
     /**
      * Get parent Folder. Will return null for the root folder.
      *
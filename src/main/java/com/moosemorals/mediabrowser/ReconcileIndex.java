@@ -0,0 +1,434 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Joins what FTP finds with what DLNA finds.
+ *
+ * <p>
+ * The two sides don't always agree on names, so recordings are matched on
+ * their title (with the extension, the Humax date suffix, case and
+ * punctuation taken out). DLNA doesn't always give a size, and when it does
+ * it doesn't always agree with FTP, so size and start time are only used to
+ * pick between recordings with the same title. A start time that both sides
+ * know has to match, so repeats of a programme are kept apart.
+ * Each recording gets a {@link Record} holding the FTP file and the DLNA item
+ * (either of which can be missing), and records are kept in sets by what's
+ * missing, so finding FTP only and DLNA only recordings doesn't mean walking
+ * the tree.</p>
+ *
+ * <p>
+ * A recording is "moved" (a ghost copy) when both sides have it, but in
+ * different folders. That usually means it's been moved by FTP and the PVR's
+ * DLNA server hasn't caught up yet.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class ReconcileIndex {
+
+    private static final Pattern HUMAX_SUFFIX = Pattern.compile("^(.*)_(\\d{8}_\\d{4})$");
+    private static final DateTimeFormatter HUMAX_DATE = DateTimeFormat.forPattern("yyyyMMdd_HHmm");
+    private static final long UNKNOWN = -1;
+
+    private final Map<String, List<Record>> byKey = new HashMap<>();
+    private final Map<PVRFile, Record> byFtp = new IdentityHashMap<>();
+    private final Map<String, Record> byDlna = new HashMap<>();
+    private final Map<PVRFile, Record> byStray = new IdentityHashMap<>();
+    private final Set<Record> both = new LinkedHashSet<>();
+    private final Set<Record> ftpOnly = new LinkedHashSet<>();
+    private final Set<Record> dlnaOnly = new LinkedHashSet<>();
+    private int pass = 0;
+
+    /**
+     * Boil a file name or title down to something both sides should agree
+     * on. Drops a ".ts" extension and a Humax "_yyyyMMdd_HHmm" suffix, lower
+     * cases, and turns runs of anything that isn't a letter or digit into a
+     * single space.
+     *
+     * @param name String file name or title
+     * @return String normalised title
+     */
+    static String normalise(String name) {
+        String result = stripExtension(name);
+        Matcher m = HUMAX_SUFFIX.matcher(result);
+        if (m.matches()) {
+            result = m.group(1);
+        }
+        return result.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+
+    /**
+     * Get the start time from a Humax file name, if it has one.
+     *
+     * @param name String file name
+     * @return DateTime start time, or null if the name doesn't have one
+     */
+    static DateTime startFromName(String name) {
+        Matcher m = HUMAX_SUFFIX.matcher(stripExtension(name));
+        if (m.matches()) {
+            try {
+                return HUMAX_DATE.parseDateTime(m.group(2));
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String stripExtension(String name) {
+        return name.endsWith(".ts") ? name.substring(0, name.length() - 3) : name;
+    }
+
+    private static String key(String name) {
+        return normalise(name);
+    }
+
+    private static long toMinutes(DateTime when) {
+        return when != null ? when.getMillis() / 60000 : UNKNOWN;
+    }
+
+    /**
+     * Add (or update) a file found by FTP.
+     *
+     * @param file PVRFile with its size set
+     * @return Record the file is now in
+     */
+    synchronized Record addFtp(PVRFile file) {
+        String key = key(file.getRemoteFilename());
+        DateTime when = file.getStartTime() != null ? file.getStartTime() : startFromName(file.getRemoteFilename());
+
+        Record record = byFtp.get(file);
+        if (record != null) {
+            if (record.key.equals(key)) {
+                // Still recording, maybe
+                record.ftpSize = file.getSize();
+                return record;
+            }
+            // Renamed, so it may match something else now
+            detachFtp(record);
+        }
+
+        record = find(key, toMinutes(when), file.getSize(), true);
+        if (record == null) {
+            record = new Record(key);
+            byKey.get(key).add(record);
+        }
+        record.ftp = file;
+        record.ftpSize = file.getSize();
+        if (record.start == UNKNOWN) {
+            record.start = toMinutes(when);
+        }
+        byFtp.put(file, record);
+        updateState(record);
+        return record;
+    }
+
+    /**
+     * Add (or update) an item found by DLNA.
+     *
+     * @param id String DIDL id of the item
+     * @param title String title of the item
+     * @param size long size of the item, or -1 if not known
+     * @param url String download URL, may be null
+     * @param folder PVRFolder the item was found in
+     * @return Record the item is now in
+     */
+    synchronized Record addDlna(String id, String title, long size, String url, PVRFolder folder) {
+        String key = key(title);
+
+        Record record = byDlna.get(id);
+        if (record != null && !record.key.equals(key)) {
+            detachDlna(record);
+            record = null;
+        }
+        if (record == null) {
+            record = find(key, toMinutes(startFromName(title)), size, false);
+            if (record == null) {
+                record = new Record(key);
+                byKey.get(key).add(record);
+            }
+            record.dlnaId = id;
+            byDlna.put(id, record);
+        }
+        record.dlnaTitle = title;
+        record.dlnaSize = size;
+        record.url = url;
+        record.dlnaFolder = folder;
+        record.seen = pass;
+        updateState(record);
+        return record;
+    }
+
+    /**
+     * Remember the file that was made for a DLNA item that didn't match
+     * anything from FTP, so it can be tidied away if FTP finds the recording
+     * later.
+     *
+     * @param record Record for the DLNA item
+     * @param file PVRFile added to the tree for it
+     */
+    synchronized void setStray(Record record, PVRFile file) {
+        if (record.stray != null) {
+            byStray.remove(record.stray);
+        }
+        record.stray = file;
+        byStray.put(file, record);
+    }
+
+    /**
+     * Forget a file that's gone from FTP.
+     *
+     * @param file PVRFile that's gone
+     */
+    synchronized void removeFtp(PVRFile file) {
+        Record record = byFtp.get(file);
+        if (record != null) {
+            detachFtp(record);
+        }
+        clearStray(file);
+    }
+
+    /**
+     * Stop treating a file as a stray, because it's gone or because FTP has
+     * found it too.
+     *
+     * @param file PVRFile that was added for a DLNA item
+     */
+    synchronized void clearStray(PVRFile file) {
+        Record record = byStray.remove(file);
+        if (record != null) {
+            record.stray = null;
+        }
+    }
+
+    /**
+     * Start a full DLNA pass. Items that aren't seen again before
+     * {@link #endDlnaPass()} are forgotten.
+     */
+    synchronized void startDlnaPass() {
+        pass += 1;
+    }
+
+    /**
+     * Finish a full DLNA pass, forgetting items that weren't seen.
+     */
+    synchronized void endDlnaPass() {
+        List<Record> gone = new ArrayList<>();
+        for (Record r : byDlna.values()) {
+            if (r.seen != pass) {
+                gone.add(r);
+            }
+        }
+        for (Record r : gone) {
+            detachDlna(r);
+        }
+    }
+
+    /**
+     * Get the FTP files that DLNA hasn't found.
+     *
+     * @return List of PVRFiles
+     */
+    synchronized List<PVRFile> getFtpOnly() {
+        List<PVRFile> result = new ArrayList<>();
+        for (Record r : ftpOnly) {
+            result.add(r.ftp);
+        }
+        return result;
+    }
+
+    /**
+     * Get the DLNA items that FTP hasn't found.
+     *
+     * @return List of Records
+     */
+    synchronized List<Record> getDlnaOnly() {
+        return new ArrayList<>(dlnaOnly);
+    }
+
+    /**
+     * Get the recordings that FTP and DLNA have in different folders.
+     *
+     * @return List of Records
+     */
+    synchronized List<Record> getMoved() {
+        List<Record> result = new ArrayList<>();
+        for (Record r : both) {
+            if (r.isMoved()) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find a record with a free slot on one side that matches. Records with
+     * the same start time are best, then records with the same size, then any
+     * record that doesn't have a different start time.
+     */
+    private Record find(String key, long start, long size, boolean forFtp) {
+        List<Record> bucket = byKey.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            byKey.put(key, bucket);
+            return null;
+        }
+        Record best = null;
+        int bestScore = -1;
+        for (Record r : bucket) {
+            boolean free = forFtp ? r.ftp == null : r.dlnaId == null;
+            if (!free || (start != UNKNOWN && r.start != UNKNOWN && start != r.start)) {
+                continue;
+            }
+            long otherSize = forFtp ? r.dlnaSize : r.ftpSize;
+            int score = 0;
+            if (start != UNKNOWN && start == r.start) {
+                score += 2;
+            }
+            if (size != UNKNOWN && size == otherSize) {
+                score += 1;
+            }
+            if (score > bestScore) {
+                best = r;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private void detachFtp(Record record) {
+        byFtp.remove(record.ftp);
+        record.ftp = null;
+        record.ftpSize = UNKNOWN;
+        updateState(record);
+    }
+
+    private void detachDlna(Record record) {
+        byDlna.remove(record.dlnaId);
+        record.dlnaId = null;
+        record.dlnaSize = UNKNOWN;
+        record.url = null;
+        record.dlnaFolder = null;
+        if (record.stray != null) {
+            byStray.remove(record.stray);
+            record.stray = null;
+        }
+        updateState(record);
+    }
+
+    private void updateState(Record record) {
+        both.remove(record);
+        ftpOnly.remove(record);
+        dlnaOnly.remove(record);
+        if (record.ftp != null && record.dlnaId != null) {
+            both.add(record);
+        } else if (record.ftp != null) {
+            ftpOnly.add(record);
+        } else if (record.dlnaId != null) {
+            dlnaOnly.add(record);
+        } else {
+            List<Record> bucket = byKey.get(record.key);
+            for (Iterator<Record> it = bucket.iterator(); it.hasNext();) {
+                if (it.next() == record) {
+                    it.remove();
+                }
+            }
+            if (bucket.isEmpty()) {
+                byKey.remove(record.key);
+            }
+        }
+    }
+
+    /**
+     * One recording, as seen by FTP and/or DLNA.
+     */
+    static class Record {
+
+        private final String key;
+        private long start = UNKNOWN;
+        private long ftpSize = UNKNOWN;
+        private long dlnaSize = UNKNOWN;
+        private PVRFile ftp;
+        private PVRFile stray;
+        private String dlnaId;
+        private String dlnaTitle;
+        private String url;
+        private PVRFolder dlnaFolder;
+        private int seen;
+
+        private Record(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Get the file FTP found, if it has.
+         *
+         * @return PVRFile or null
+         */
+        PVRFile getFtpFile() {
+            return ftp;
+        }
+
+        /**
+         * Get the file that was added to the tree for a DLNA item that FTP
+         * hadn't found.
+         *
+         * @return PVRFile or null
+         */
+        PVRFile getStray() {
+            return stray;
+        }
+
+        String getDlnaTitle() {
+            return dlnaTitle;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        PVRFolder getDlnaFolder() {
+            return dlnaFolder;
+        }
+
+        boolean isMoved() {
+            return ftp != null && dlnaFolder != null && ftp.getParent() != dlnaFolder;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of changes to make to the files and folders on the PVR.
+ *
+ * <p>
+ * Operations are collected here, and then run together by
+ * {@link PVR#apply(RemoteBatch)} so that each folder is only listed once and
+ * the tree is only updated once the FTP side is done. Renames are moves to the
+ * same folder with a different name.</p>
+ *
+ * <p>
+ * When the batch runs, new folders are made first, then moves and renames
+ * (grouped by the folder they are coming from), and then folders are deleted.
+ * Files are moved along with their .hmt, .nts and .thm files.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class RemoteBatch {
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Move a file or folder into a different folder, keeping its name.
+     *
+     * @param item PVRItem to move
+     * @param destination PVRFolder to move it to
+     * @return this, for chaining
+     */
+    public RemoteBatch move(PVRItem item, PVRFolder destination) {
+        operations.add(new Operation(Operation.Type.Move, item, destination, item.getRemoteFilename()));
+        return this;
+    }
+
+    /**
+     * Rename a file or folder in place. For files, give the new name without
+     * the extension, since the name is applied to all the files that make up
+     * the recording.
+     *
+     * @param item PVRItem to rename
+     * @param newName String new name
+     * @return this, for chaining
+     */
+    public RemoteBatch rename(PVRItem item, String newName) {
+        if (item.isFile()) {
+            newName = newName + ".ts";
+        }
+        operations.add(new Operation(Operation.Type.Move, item, item.getParent(), newName));
+        return this;
+    }
+
+    /**
+     * Make a new folder.
+     *
+     * @param parent PVRFolder to make the new folder in
+     * @param name String name of the new folder
+     * @return this, for chaining
+     */
+    public RemoteBatch createFolder(PVRFolder parent, String name) {
+        operations.add(new Operation(Operation.Type.CreateFolder, null, parent, name));
+        return this;
+    }
+
+    /**
+     * Delete a folder. The PVR won't delete folders that have anything in
+     * them.
+     *
+     * @param folder PVRFolder to delete
+     * @return this, for chaining
+     */
+    public RemoteBatch deleteFolder(PVRFolder folder) {
+        operations.add(new Operation(Operation.Type.DeleteFolder, folder, folder.getParent(), folder.getRemoteFilename()));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Get all the operations of a type, in the order they were added.
+     *
+     * @param type Operation.Type to get
+     * @return List of Operations
+     */
+    List<Operation> getOperations(Operation.Type type) {
+        List<Operation> result = new ArrayList<>();
+        for (Operation op : operations) {
+            if (op.type == type) {
+                result.add(op);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the moves, grouped by the folder they are moving from.
+     *
+     * @return Map of source folder to moves from that folder.
+     */
+    Map<PVRFolder, List<Operation>> getMovesBySource() {
+        Map<PVRFolder, List<Operation>> result = new LinkedHashMap<>();
+        for (Operation op : getOperations(Operation.Type.Move)) {
+            List<Operation> group = result.get(op.item.getParent());
+            if (group == null) {
+                group = new ArrayList<>();
+                result.put(op.item.getParent(), group);
+            }
+            group.add(op);
+        }
+        return result;
+    }
+
+    /**
+     * A single change.
+     */
+    static class Operation {
+
+        static enum Type {
+            CreateFolder, Move, DeleteFolder
+        }
+
+        final Type type;
+        /**
+         * Item being moved or deleted. Null for CreateFolder.
+         */
+        final PVRItem item;
+        /**
+         * Folder the item is going to (or being created in, or deleted from).
+         */
+        final PVRFolder folder;
+        /**
+         * Name of the item once the operation is done.
+         */
+        final String name;
+
+        Operation(Type type, PVRItem item, PVRFolder folder, String name) {
+            this.type = type;
+            this.item = item;
+            this.folder = folder;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + (item != null ? item.getRemotePath() : "") + " -> " + folder.getRemotePath() + name;
+        }
+    }
+}
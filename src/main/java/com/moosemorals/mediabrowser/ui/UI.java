@@ -30,6 +30,7 @@ import com.moosemorals.mediabrowser.DownloadManager.QueueItem;
 import com.moosemorals.mediabrowser.Main;
 import com.moosemorals.mediabrowser.PVR;
 import com.moosemorals.mediabrowser.PVRFile;
+import com.moosemorals.mediabrowser.PVRFolder;
 import com.moosemorals.mediabrowser.PVRItem;
 import com.moosemorals.mediabrowser.RateTracker;
 import com.moosemorals.mediabrowser.ui.dnd.ListTransferHandler;
@@ -48,6 +49,7 @@ import java.awt.Rectangle;
 import java.awt.SystemTray;
 import java.awt.TrayIcon;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
@@ -72,8 +74,12 @@ import java.util.prefs.Preferences;
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.GroupLayout.Alignment;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.plaf.FontUIResource;
@@ -101,6 +107,9 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
     public static final String ACTION_RESTORE = "restore";
     public static final String ACTION_FONT_BIGGER = "font-bigger";
     public static final String ACTION_FONT_SMALLER = "font-smaller";
+    public static final String ACTION_USE_AUTO = "use-auto";
+    public static final String ACTION_USE_HTTP = "use-http";
+    public static final String ACTION_USE_FTP = "use-ftp";
 
     public static final String ICON_CONNECTED = "Blue";
     public static final String ICON_DISCONNECTED = "Grey";
@@ -110,6 +119,7 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
     private static final String[] ICON_COLORS = {ICON_DISCONNECTED, ICON_CONNECTED, ICON_DOWNLOADING, ICON_ERROR};
     private static final int[] ICON_SIZES = {32, 24, 20, 16};
     private static final int INFOBOX_PADDING = 6;
+    private static final int WANTED_FOLDERS_DELAY = 250; // milliseconds
 
     private final RateTracker rateTracker;
     private final DownloadManager downloader;
@@ -130,11 +140,13 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
     private final TrayIcon trayIcon;
     private boolean customFont = false;
     private boolean connected = false;
+    private List<PVRFolder> wantedFolders = new ArrayList<>();
+    private final Timer wantedFoldersTimer;
 
     private final Action actionAbout, actionStartStop, actionQueue, actionRemoveLock, actionChooseDefaultDownloadPath,
             actionChooseDownloadPath, actionRemoveSelected, actionQuit, actionRestore, actionSetMinimiseToTray,
             actionSetAutoDownload, actionSetSaveDownloadList, actionSetShowMessageOnComplete, actionScan,
-            actionFontBigger, actionFontSmaller;
+            actionFontBigger, actionFontSmaller, actionUseAuto, actionUseHttp, actionUseFtp, actionSetDownloadOverFtp;
 
     public UI(Main m) {
         this.main = m;
@@ -171,6 +183,10 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
         actionSetMinimiseToTray = new PreferenceAction(prefs, "Minimise to tray", Main.KEY_MINIMISE_TO_TRAY);
         actionSetShowMessageOnComplete = new PreferenceAction(prefs, "Show completed notification", Main.KEY_MESSAGE_ON_COMPLETE);
         actionSetSaveDownloadList = new PreferenceAction(prefs, "Save download queue", Main.KEY_SAVE_DOWNLOAD_LIST);
+        actionSetDownloadOverFtp = new PreferenceAction(prefs, "Download over FTP", Main.KEY_DOWNLOAD_OVER_FTP);
+        actionUseAuto = new LocalAction(main, "Download selected over HTTP or FTP", ACTION_USE_AUTO);
+        actionUseHttp = new LocalAction(main, "Download selected over HTTP", ACTION_USE_HTTP);
+        actionUseFtp = new LocalAction(main, "Download selected over FTP", ACTION_USE_FTP);
         actionFontBigger = new LocalAction(main, "Increase font size", ACTION_FONT_BIGGER, KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, ActionEvent.CTRL_MASK));
         actionFontSmaller = new LocalAction(main, "Decrease font size", ACTION_FONT_SMALLER, KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, ActionEvent.CTRL_MASK));
 
@@ -282,6 +298,10 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
         jCheckBoxMenuItem.setState(prefs.getBoolean(Main.KEY_SAVE_DOWNLOAD_LIST, false));
         menu.add(jCheckBoxMenuItem);
 
+        jCheckBoxMenuItem = new JCheckBoxMenuItem(actionSetDownloadOverFtp);
+        jCheckBoxMenuItem.setState(prefs.getBoolean(Main.KEY_DOWNLOAD_OVER_FTP, false));
+        menu.add(jCheckBoxMenuItem);
+
         menu.addSeparator();
 
         menu.add(actionFontBigger);
@@ -304,6 +324,9 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
         final JPopupMenu listPopup = new JPopupMenu();
         listPopup.add(actionChooseDownloadPath);
         listPopup.add(actionRemoveSelected);
+        listPopup.add(actionUseAuto);
+        listPopup.add(actionUseHttp);
+        listPopup.add(actionUseFtp);
         listPopup.add(actionStartStop);
 
         final JButton defaultFolderButton = new JButton(actionChooseDefaultDownloadPath);
@@ -514,7 +537,36 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
             infoBox.setFont(new Font("Arimo", Font.PLAIN, 13));
         }
 
-        horizontalSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, new JScrollPane(displayTree), new JScrollPane(downloadList));
+        // Scrolling fires lots of events, so wait for it to settle
+        wantedFoldersTimer = new Timer(WANTED_FOLDERS_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateWantedFolders();
+            }
+        });
+        wantedFoldersTimer.setRepeats(false);
+
+        displayTree.addTreeExpansionListener(new TreeExpansionListener() {
+            @Override
+            public void treeExpanded(TreeExpansionEvent event) {
+                wantedFoldersTimer.restart();
+            }
+
+            @Override
+            public void treeCollapsed(TreeExpansionEvent event) {
+                wantedFoldersTimer.restart();
+            }
+        });
+
+        JScrollPane treeScrollPane = new JScrollPane(displayTree);
+        treeScrollPane.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                wantedFoldersTimer.restart();
+            }
+        });
+
+        horizontalSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, treeScrollPane, new JScrollPane(downloadList));
         horizontalSplitPane.setResizeWeight(0.5);
 
         verticalSplitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, horizontalSplitPane, infoBox);
@@ -726,6 +778,41 @@ public class UI implements DeviceListener, DownloadManager.DownloadStatusListene
         return result;
     }
 
+    /**
+     * Tell the PVR which folders are expanded or on screen, so the scanner can
+     * list them first. Only passes the list on if it has changed.
+     */
+    private void updateWantedFolders() {
+        List<PVRFolder> wanted = new ArrayList<>();
+
+        Rectangle visible = displayTree.getVisibleRect();
+        int first = displayTree.getClosestRowForLocation(visible.x, visible.y);
+        int last = displayTree.getClosestRowForLocation(visible.x, visible.y + visible.height);
+        if (first != -1) {
+            for (int row = first; row <= last; row += 1) {
+                Object item = displayTree.getPathForRow(row).getLastPathComponent();
+                if (item instanceof PVRFolder) {
+                    wanted.add((PVRFolder) item);
+                }
+            }
+        }
+
+        Enumeration<TreePath> expanded = displayTree.getExpandedDescendants(new TreePath(pvr.getRoot()));
+        if (expanded != null) {
+            while (expanded.hasMoreElements()) {
+                Object item = expanded.nextElement().getLastPathComponent();
+                if (item instanceof PVRFolder && !wanted.contains((PVRFolder) item)) {
+                    wanted.add((PVRFolder) item);
+                }
+            }
+        }
+
+        if (!wanted.equals(wantedFolders)) {
+            wantedFolders = wanted;
+            pvr.setWantedFolders(wanted);
+        }
+    }
+
     /**
      * Get the list of currently selected items in the download list.
      *
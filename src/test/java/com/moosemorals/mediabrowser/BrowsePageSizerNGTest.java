@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class BrowsePageSizerNGTest {
+
+    @Test
+    public void test_grows_while_latency_is_flat() {
+        BrowsePageSizer sizer = new BrowsePageSizer();
+        int size = sizer.getPageSize();
+        sizer.onSuccess(size, size, size * 2);
+        assertTrue(sizer.getPageSize() > size);
+
+        size = sizer.getPageSize();
+        sizer.onSuccess(size, size, size * 3);
+        assertTrue(sizer.getPageSize() > size);
+    }
+
+    @Test
+    public void test_stops_growing_when_slow() {
+        BrowsePageSizer sizer = new BrowsePageSizer();
+        int size = sizer.getPageSize();
+        sizer.onSuccess(size, size, size * 2);
+
+        size = sizer.getPageSize();
+        sizer.onSuccess(size, size, size * 5);
+        assertEquals(sizer.getPageSize(), size);
+    }
+
+    @Test
+    public void test_short_pages_are_ignored() {
+        BrowsePageSizer sizer = new BrowsePageSizer();
+        int size = sizer.getPageSize();
+        sizer.onSuccess(size, 3, 10);
+        assertEquals(sizer.getPageSize(), size);
+    }
+
+    @Test
+    public void test_shrinks_on_failure() {
+        BrowsePageSizer sizer = new BrowsePageSizer();
+        for (int i = 0; i < 20; i += 1) {
+            sizer.onFailure(sizer.getPageSize());
+        }
+        assertEquals(sizer.getPageSize(), BrowsePageSizer.MIN_SIZE);
+    }
+
+    @Test
+    public void test_never_grows_past_max() {
+        BrowsePageSizer sizer = new BrowsePageSizer();
+        for (int i = 0; i < 50; i += 1) {
+            int size = sizer.getPageSize();
+            // Two miliseconds an entry, however big the page
+            sizer.onSuccess(size, size, size * 2);
+        }
+        assertEquals(sizer.getPageSize(), BrowsePageSizer.MAX_SIZE);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class DidlParserNGTest {
+
+    private static final String HEADER = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\""
+            + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+            + " xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">";
+
+    private List<DlnaCache.Entry> parse(String body) throws IOException {
+        final List<DlnaCache.Entry> result = new ArrayList<>();
+        DidlParser.parse(HEADER + body + "</DIDL-Lite>", new DidlParser.Handler() {
+            @Override
+            public void onEntry(DlnaCache.Entry entry) {
+                result.add(entry);
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void test_container_and_item() throws IOException {
+        List<DlnaCache.Entry> entries = parse(
+                "<container id=\"0\\1\\2\\3\" parentID=\"0\\1\\2\" restricted=\"1\">"
+                + "<dc:title>Doctor Who</dc:title><upnp:class>object.container</upnp:class></container>"
+                + "<item id=\"0\\1\\2\\4\" parentID=\"0\\1\\2\" restricted=\"1\">"
+                + "<dc:title>News &amp; Weather</dc:title><upnp:class>object.item.videoItem</upnp:class>"
+                + "<res size=\"1234\" protocolInfo=\"http-get:*:video/mpeg:*\"> http://pvr:9000/web/media/4.TS </res>"
+                + "<res size=\"99\">http://pvr:9000/web/media/4.jpg</res>"
+                + "</item>");
+
+        assertEquals(entries.size(), 2);
+
+        DlnaCache.Entry folder = entries.get(0);
+        assertTrue(folder.folder);
+        assertEquals(folder.id, "0\\1\\2\\3");
+        assertEquals(folder.title, "Doctor Who");
+        assertNull(folder.url);
+
+        DlnaCache.Entry item = entries.get(1);
+        assertFalse(item.folder);
+        assertEquals(item.title, "News & Weather");
+        assertEquals(item.url, "http://pvr:9000/web/media/4.TS");
+        assertEquals(item.size, 1234);
+    }
+
+    @Test
+    public void test_missing_size() throws IOException {
+        List<DlnaCache.Entry> entries = parse(
+                "<item id=\"5\" parentID=\"0\"><dc:title>Film</dc:title><res>http://pvr/5.TS</res></item>"
+                + "<item id=\"6\" parentID=\"0\"><dc:title>Other</dc:title><res size=\"lots\">http://pvr/6.TS</res></item>");
+
+        assertEquals(entries.get(0).size, -1);
+        assertEquals(entries.get(1).size, -1);
+        assertEquals(entries.get(1).url, "http://pvr/6.TS");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void test_broken_xml() throws IOException {
+        parse("<item id=\"5\"><dc:title>Film</item>");
+    }
+}
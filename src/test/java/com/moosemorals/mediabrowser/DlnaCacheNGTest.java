@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.util.Arrays;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class DlnaCacheNGTest {
+
+    private static final String ROOT = "0";
+
+    @Test
+    public void test_valid_after_commit() {
+        DlnaCache cache = new DlnaCache();
+        assertFalse(cache.isValid(ROOT, 7));
+
+        cache.start();
+        cache.addPage(ROOT, 3, 0, Arrays.asList(new DlnaCache.Entry("Film", null, "http://pvr/1", -1, false)));
+        assertFalse(cache.isValid(ROOT, 7));
+
+        cache.commit(7);
+        assertTrue(cache.isValid(ROOT, 7));
+        assertFalse(cache.isValid(ROOT, 8));
+        assertFalse(cache.isValid(ROOT, DlnaCache.UNKNOWN));
+        assertEquals(cache.getUpdateId(ROOT), 3);
+    }
+
+    @Test
+    public void test_pages_come_back_in_order() {
+        DlnaCache cache = new DlnaCache();
+        cache.start();
+        cache.addPage(ROOT, 3, 2, Arrays.asList(new DlnaCache.Entry("c", null, null, -1, false)));
+        cache.addPage(ROOT, 3, 0, Arrays.asList(new DlnaCache.Entry("a", null, null, -1, false), new DlnaCache.Entry("b", null, null, -1, false)));
+        cache.commit(1);
+
+        List<DlnaCache.Entry> entries = cache.getEntries(ROOT);
+        assertEquals(entries.size(), 3);
+        assertEquals(entries.get(0).title, "a");
+        assertEquals(entries.get(2).title, "c");
+    }
+
+    @Test
+    public void test_incomplete_containers_are_dropped() {
+        DlnaCache cache = new DlnaCache();
+        cache.start();
+        cache.addPage(ROOT, 3, 0, Arrays.asList(new DlnaCache.Entry("a", null, null, -1, false)));
+        cache.addPage("1", 4, 0, Arrays.asList(new DlnaCache.Entry("b", null, null, -1, false)));
+        // UpdateID changed between pages
+        cache.addPage("1", 5, 1, Arrays.asList(new DlnaCache.Entry("c", null, null, -1, false)));
+        cache.markIncomplete(ROOT);
+        cache.commit(1);
+
+        assertNull(cache.getEntries(ROOT));
+        assertNull(cache.getEntries("1"));
+    }
+
+    @Test
+    public void test_keep_carries_container_forward() {
+        DlnaCache cache = new DlnaCache();
+        cache.start();
+        cache.addPage(ROOT, 3, 0, Arrays.asList(new DlnaCache.Entry("a", null, null, -1, false)));
+        cache.addPage("1", 4, 0, Arrays.asList(new DlnaCache.Entry("b", null, null, -1, false)));
+        cache.commit(1);
+
+        cache.start();
+        cache.keep(ROOT);
+        cache.commit(2);
+
+        assertEquals(cache.getEntries(ROOT).size(), 1);
+        assertNull(cache.getEntries("1"));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.util.Map;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class DlnaScannerNGTest {
+
+    @Test
+    public void test_parse_container_update_ids() {
+        Map<String, Long> result = DlnaScanner.parseContainerUpdateIds("0\\1\\2,12,0\\1\\2\\3,4");
+
+        assertEquals(result.size(), 2);
+        assertEquals(result.get("0\\1\\2"), Long.valueOf(12));
+        assertEquals(result.get("0\\1\\2\\3"), Long.valueOf(4));
+    }
+
+    @Test
+    public void test_parse_container_update_ids_escapes() {
+        Map<String, Long> result = DlnaScanner.parseContainerUpdateIds("a\\,b,1,c\\\\,2");
+
+        assertEquals(result.get("a,b"), Long.valueOf(1));
+        assertEquals(result.get("c\\"), Long.valueOf(2));
+    }
+
+    @Test
+    public void test_parse_container_update_ids_bad_input() {
+        assertTrue(DlnaScanner.parseContainerUpdateIds("").isEmpty());
+        assertTrue(DlnaScanner.parseContainerUpdateIds("a,notanumber,b").isEmpty());
+    }
+
+    @Test
+    public void test_quote_search() {
+        assertEquals(DlnaScanner.quoteSearch("News.ts"), "\"News.ts\"");
+        assertEquals(DlnaScanner.quoteSearch("Say \"hi\" \\o/"), "\"Say \\\"hi\\\" \\\\o/\"");
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import java.io.File;
+import java.io.IOException;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class HMTCacheNGTest {
+
+    private File cacheFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("hmt", ".cache");
+        cacheFile.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        cacheFile.delete();
+    }
+
+    private HMTCache.Entry entry(long size, long timestamp, String title) {
+        return new HMTCache.Entry(size, timestamp, title, "Description", "BBC ONE", 1000, 2000, 1000, false, true);
+    }
+
+    @Test
+    public void test_get_matches_size_and_timestamp() {
+        HMTCache cache = new HMTCache(cacheFile);
+        cache.put("/Folder/file.ts", entry(100, 200, "Title"));
+
+        assertNotNull(cache.get("/Folder/file.ts", 100, 200));
+        // Changed size or timestamp means the recording has changed
+        assertNull(cache.get("/Folder/file.ts", 101, 200));
+        assertNull(cache.get("/Folder/file.ts", 100, 201));
+        assertNull(cache.get("/Folder/other.ts", 100, 200));
+    }
+
+    @Test
+    public void test_rename_moves_entry() {
+        HMTCache cache = new HMTCache(cacheFile);
+        cache.put("/Folder/file.ts", entry(100, 200, "Title"));
+
+        cache.rename("/Folder/file.ts", "/Other/file.ts");
+
+        assertNull(cache.get("/Folder/file.ts", 100, 200));
+        assertNotNull(cache.get("/Other/file.ts", 100, 200));
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void test_save_and_load() {
+        HMTCache cache = new HMTCache(cacheFile);
+        cache.put("/Folder/file.ts", entry(100, 200, "Title"));
+        cache.save();
+
+        HMTCache loaded = new HMTCache(cacheFile);
+        loaded.load();
+        HMTCache.Entry e = loaded.get("/Folder/file.ts", 100, 200);
+        assertNotNull(e);
+        assertEquals(e.title, "Title");
+        assertEquals(e.channelName, "BBC ONE");
+        assertEquals(e.locked, true);
+    }
+
+    @Test
+    public void test_unseen_entries_evicted() {
+        HMTCache cache = new HMTCache(cacheFile);
+        cache.put("/Folder/kept.ts", entry(100, 200, "Kept"));
+        cache.put("/Folder/gone.ts", entry(100, 200, "Gone"));
+
+        cache.startScan();
+        cache.get("/Folder/kept.ts", 100, 200);
+        cache.finishScan(true);
+
+        assertEquals(cache.size(), 1);
+        assertNotNull(cache.get("/Folder/kept.ts", 100, 200));
+    }
+
+    @Test
+    public void test_incomplete_scan_keeps_entries() {
+        HMTCache cache = new HMTCache(cacheFile);
+        cache.put("/Folder/kept.ts", entry(100, 200, "Kept"));
+        cache.put("/Folder/unknown.ts", entry(100, 200, "Unknown"));
+
+        cache.startScan();
+        cache.get("/Folder/kept.ts", 100, 200);
+        cache.finishScan(false);
+
+        assertEquals(cache.size(), 2);
+    }
+}
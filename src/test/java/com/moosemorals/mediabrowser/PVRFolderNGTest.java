@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class PVRFolderNGTest {
+
+    private final PVRFolder root = new PVRFolder(null, "/", "Root");
+
+    private PVRFolder device() {
+        PVRFolder device = new PVRFolder(root, "/", "Lounge");
+        root.addChild(device);
+        return device;
+    }
+
+    private PVRFolder folder(PVRFolder parent, String name) {
+        return new PVRFolder(parent, parent.getRemotePath() + name + "/", name);
+    }
+
+    private PVRFile file(PVRFolder parent, String name) {
+        return new PVRFile(parent, parent.getRemotePath() + name, name);
+    }
+
+    private void assertChildren(PVRFolder parent, List<PVRItem> expected) {
+        assertEquals(parent.getChildCount(), expected.size());
+        for (int i = 0; i < expected.size(); i += 1) {
+            PVRItem item = expected.get(i);
+            assertSame(parent.getChild(i), item);
+            assertEquals(parent.getChildIndex(item), i);
+            assertSame(parent.getChild(item.getRemoteFilename()), item);
+        }
+    }
+
+    @Test
+    public void test_same_order_as_sort() {
+        PVRFolder device = device();
+        List<PVRItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i += 1) {
+            String name = String.format("Recording %03d", i);
+            items.add(i % 5 == 0 ? folder(device, name) : file(device, name + ".ts"));
+        }
+        Collections.shuffle(items, new Random(42));
+
+        List<PVRItem> expected = new ArrayList<>();
+        for (PVRItem item : items) {
+            int index = device.addChild(item);
+            expected.add(item);
+            Collections.sort(expected);
+            assertEquals(index, expected.indexOf(item));
+        }
+        assertChildren(device, expected);
+    }
+
+    @Test
+    public void test_remove() {
+        PVRFolder device = device();
+        PVRFile a = file(device, "A.ts");
+        PVRFile b = file(device, "B.ts");
+        PVRFolder c = folder(device, "C");
+        device.addChild(a);
+        device.addChild(b);
+        device.addChild(c);
+
+        device.removeChild(a);
+        assertNull(device.getChild("A.ts"));
+        assertEquals(device.getChildIndex(a), -1);
+
+        List<PVRItem> expected = new ArrayList<>();
+        expected.add(c);
+        expected.add(b);
+        assertChildren(device, expected);
+    }
+
+    @Test
+    public void test_remove_while_walking() {
+        PVRFolder device = device();
+        final PVRFile a = file(device, "A.ts");
+        PVRFile b = file(device, "B.ts");
+        device.addChild(a);
+        device.addChild(b);
+
+        device.treeWalk(null, new PVR.TreeWalker() {
+            @Override
+            public void action(PVRItem item, Iterator it) {
+                if (item == a) {
+                    it.remove();
+                }
+            }
+        }, false);
+
+        assertNull(device.getChild("A.ts"));
+        assertChildren(device, Collections.<PVRItem>singletonList(b));
+    }
+
+    @Test
+    public void test_rename_keeps_order() {
+        PVRFolder device = device();
+        PVRFile a = file(device, "A.ts");
+        PVRFile b = file(device, "B.ts");
+        device.addChild(a);
+        device.addChild(b);
+
+        assertEquals(device.renameChild(a, "C.ts"), 1);
+        assertNull(device.getChild("A.ts"));
+        assertEquals(a.getRemotePath(), "/C.ts");
+
+        List<PVRItem> expected = new ArrayList<>();
+        expected.add(b);
+        expected.add(a);
+        assertChildren(device, expected);
+    }
+
+    @Test
+    public void test_fingerprint_ignores_dlna_only_children() {
+        PVRFolder device = device();
+        PVRFile ftp = file(device, "A.ts");
+        ftp.setFtpScanned(true);
+        device.addChild(ftp);
+        device.setFtpFingerprint("modify=20160301190000", 1);
+        assertTrue(device.isFtpUnchanged("modify=20160301190000"));
+
+        // Found by DLNA, not in the FTP listing
+        device.addChild(file(device, "B.ts"));
+        assertEquals(device.getFtpChildCount(), 1);
+        assertTrue(device.isFtpUnchanged("modify=20160301190000"));
+
+        assertFalse(device.isFtpUnchanged("modify=20160301190100"));
+        assertFalse(device.isFtpUnchanged(null));
+
+        device.removeChild(ftp);
+        assertFalse(device.isFtpUnchanged("modify=20160301190000"));
+    }
+
+    @Test
+    public void test_rename_folder_updates_paths() {
+        PVRFolder device = device();
+        PVRFolder films = folder(device, "Films");
+        device.addChild(films);
+        PVRFile film = file(films, "Film.ts");
+        films.addChild(film);
+
+        device.renameChild(films, "Movies");
+        assertSame(device.getChild("Movies"), films);
+        assertEquals(films.getRemotePath(), "/Movies/");
+        assertEquals(film.getRemotePath(), "/Movies/Film.ts");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class PVRItemNGTest {
+
+    private final PVRFolder root = new PVRFolder(null, "/", "Root");
+
+    private PVRFolder device(String name) {
+        PVRFolder folder = new PVRFolder(root, "/", name);
+        root.addChild(folder);
+        return folder;
+    }
+
+    private PVRFile file(PVRFolder parent, String name) {
+        PVRFile file = new PVRFile(parent, parent.getRemotePath() + name, name);
+        parent.addChild(file);
+        return file;
+    }
+
+    @Test
+    public void test_device_folder() {
+        PVRFolder lounge = device("Lounge");
+        PVRFolder news = new PVRFolder(lounge, "/News/", "News");
+        lounge.addChild(news);
+        PVRFile file = file(news, "News_20160301_1830.ts");
+
+        assertNull(root.getDeviceFolder());
+        assertSame(lounge.getDeviceFolder(), lounge);
+        assertSame(news.getDeviceFolder(), lounge);
+        assertSame(file.getDeviceFolder(), lounge);
+    }
+
+    @Test
+    public void test_same_path_on_different_devices() {
+        PVRFolder lounge = device("Lounge");
+        PVRFolder bedroom = device("Bedroom");
+
+        PVRFile a = file(lounge, "News.ts");
+        PVRFile b = file(bedroom, "News.ts");
+
+        assertEquals(a.getRemotePath(), b.getRemotePath());
+        assertFalse(a.isSamePath(b));
+        assertTrue(a.isSamePath(new PVRFile(lounge, "/News.ts", "News.ts")));
+    }
+}
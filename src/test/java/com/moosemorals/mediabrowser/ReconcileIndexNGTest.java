@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.mediabrowser;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class ReconcileIndexNGTest {
+
+    private final PVRFolder root = new PVRFolder(null, "/", "Root");
+
+    private PVRFile ftpFile(PVRFolder parent, String name, long size) {
+        PVRFile file = new PVRFile(parent, parent.getRemotePath() + name, name);
+        file.setSize(size);
+        return file;
+    }
+
+    @Test
+    public void test_normalise() {
+        assertEquals(ReconcileIndex.normalise("Doctor Who_20160301_1900.ts"), "doctor who");
+        assertEquals(ReconcileIndex.normalise("Doctor Who: The Movie"), "doctor who the movie");
+        assertEquals(ReconcileIndex.normalise("  News.ts"), "news");
+    }
+
+    @Test
+    public void test_start_from_name() {
+        DateTime start = ReconcileIndex.startFromName("News_20160301_1830.ts");
+        assertNotNull(start);
+        assertEquals(start.getHourOfDay(), 18);
+        assertEquals(start.getMinuteOfHour(), 30);
+        assertNull(ReconcileIndex.startFromName("News.ts"));
+    }
+
+    @Test
+    public void test_matches_different_names() {
+        ReconcileIndex index = new ReconcileIndex();
+        PVRFile file = ftpFile(root, "News_20160301_1830.ts", 1000);
+        index.addFtp(file);
+        assertEquals(index.getFtpOnly().size(), 1);
+
+        ReconcileIndex.Record record = index.addDlna("item1", "News", 1000, "http://pvr/1", root);
+        assertSame(record.getFtpFile(), file);
+        assertTrue(index.getFtpOnly().isEmpty());
+        assertTrue(index.getDlnaOnly().isEmpty());
+        assertTrue(index.getMoved().isEmpty());
+    }
+
+    @Test
+    public void test_size_missing_or_different() {
+        ReconcileIndex index = new ReconcileIndex();
+        PVRFile news = ftpFile(root, "News_20160301_1830.ts", 1000);
+        PVRFile film = ftpFile(root, "Film_20160301_2100.ts", 5000);
+        index.addFtp(news);
+        index.addFtp(film);
+
+        assertSame(index.addDlna("item1", "News", -1, "http://pvr/1", root).getFtpFile(), news);
+        assertSame(index.addDlna("item2", "Film", 5010, "http://pvr/2", root).getFtpFile(), film);
+        assertTrue(index.getFtpOnly().isEmpty());
+        assertTrue(index.getDlnaOnly().isEmpty());
+    }
+
+    @Test
+    public void test_size_picks_between_same_title() {
+        ReconcileIndex index = new ReconcileIndex();
+        PVRFile small = ftpFile(root, "News.ts", 1000);
+        PVRFile large = ftpFile(root, "News.ts", 2000);
+        index.addFtp(small);
+        index.addFtp(large);
+
+        ReconcileIndex.Record record = index.addDlna("item1", "News", 2000, "http://pvr/1", root);
+        assertSame(record.getFtpFile(), large);
+        assertSame(index.getFtpOnly().get(0), small);
+    }
+
+    @Test
+    public void test_start_time_separates_repeats() {
+        ReconcileIndex index = new ReconcileIndex();
+        PVRFile monday = ftpFile(root, "News_20160307_1830.ts", 1000);
+        PVRFile tuesday = ftpFile(root, "News_20160308_1830.ts", 1000);
+        index.addFtp(monday);
+        index.addFtp(tuesday);
+
+        ReconcileIndex.Record record = index.addDlna("item2", "News_20160308_1830", 1000, "http://pvr/2", root);
+        assertSame(record.getFtpFile(), tuesday);
+        assertEquals(index.getFtpOnly().size(), 1);
+        assertSame(index.getFtpOnly().get(0), monday);
+    }
+
+    @Test
+    public void test_moved() {
+        ReconcileIndex index = new ReconcileIndex();
+        PVRFolder other = new PVRFolder(root, "/Other/", "Other");
+        PVRFile file = ftpFile(other, "Film_20160301_2100.ts", 5000);
+        index.addFtp(file);
+        index.addDlna("item3", "Film", 5000, "http://pvr/3", root);
+
+        assertEquals(index.getMoved().size(), 1);
+        assertSame(index.getMoved().get(0).getFtpFile(), file);
+    }
+
+    @Test
+    public void test_unseen_dlna_items_are_dropped() {
+        ReconcileIndex index = new ReconcileIndex();
+        index.startDlnaPass();
+        index.addDlna("item4", "Gone", 10, "http://pvr/4", root);
+        index.addDlna("item5", "Kept", 10, "http://pvr/5", root);
+        index.endDlnaPass();
+        assertEquals(index.getDlnaOnly().size(), 2);
+
+        index.startDlnaPass();
+        index.addDlna("item5", "Kept", 10, "http://pvr/5", root);
+        index.endDlnaPass();
+        assertEquals(index.getDlnaOnly().size(), 1);
+        assertEquals(index.getDlnaOnly().get(0).getDlnaTitle(), "Kept");
+    }
+
+    @Test
+    public void test_remove_ftp() {
+        ReconcileIndex index = new ReconcileIndex();
+        PVRFile file = ftpFile(root, "News_20160301_1830.ts", 1000);
+        index.addFtp(file);
+        index.addDlna("item1", "News", 1000, "http://pvr/1", root);
+
+        index.removeFtp(file);
+        assertTrue(index.getFtpOnly().isEmpty());
+        assertEquals(index.getDlnaOnly().size(), 1);
+    }
+}